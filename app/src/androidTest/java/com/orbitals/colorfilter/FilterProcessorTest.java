@@ -1,7 +1,11 @@
 package com.orbitals.colorfilter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -15,6 +19,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.Utils;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
@@ -165,4 +170,167 @@ public class FilterProcessorTest {
         result = processor.process(largeImage);
         assertEquals(largeImage.size(), result.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testChangeDetection() {
+        // Change detection is off unless asked for
+        FilterProcessor reference = new FilterProcessor();
+        assertFalse(reference.getChangeDetection());
+        processor.setChangeDetection(true);
+        processor.setFilterSettings(0, 30, 50, 50, FilterProcessor.FilterMode.EXCLUDE);
+        reference.setFilterSettings(0, 30, 50, 50, FilterProcessor.FilterMode.EXCLUDE);
+        Mat image = new Mat(300, 400, CvType.CV_8UC4, new Scalar(0, 0, 255, 255));
+        Imgproc.circle(image, new Point(150, 120), 60, new Scalar(255, 0, 0, 255), -1);
+
+        Mat first = processor.process(image);
+        assertFalse(processor.isFrameUnchanged());
+        Mat second = processor.process(image);
+        assertTrue(processor.isFrameUnchanged());
+        assertEquals(0, countDifferences(first, second));
+        // An unchanged frame gives back the kept output, which recycling leaves alone
+        processor.recycle(second);
+        assertSame(second, processor.process(image));
+        assertEquals(0, countDifferences(first, second));
+
+        // Only the tiles around the new shape are filtered again
+        Imgproc.rectangle(image, new Point(260, 200), new Point(300, 240), new Scalar(255, 0, 0, 255), -1);
+        Mat third = processor.process(image);
+        assertFalse(processor.isFrameUnchanged());
+        Mat expected = reference.process(image);
+        assertEquals(0, countDifferences(expected, third));
+
+        // Changing a setting filters the whole frame
+        processor.setFilterMode(FilterProcessor.FilterMode.BINARY);
+        reference.setFilterMode(FilterProcessor.FilterMode.BINARY);
+        Mat fourth = processor.process(image);
+        assertFalse(processor.isFrameUnchanged());
+        Mat expectedBinary = reference.process(image);
+        assertEquals(0, countDifferences(expectedBinary, fourth));
+    }
+
+    @Test
+    public void testFilterPlan() {
+        processor.setFilterSettings(40, 20, 60, 70, FilterProcessor.FilterMode.INCLUDE);
+        FilterPlan plan = processor.getPlan();
+        assertEquals(40, plan.getHue());
+        assertFalse(plan.needsHsvOutput());
+        assertTrue(plan.needsRangeMask());
+
+        // A published plan doesn't change when the settings do
+        processor.setHue(200);
+        processor.setFilterMode(FilterProcessor.FilterMode.NONE);
+        assertEquals(40, plan.getHue());
+        assertEquals(FilterProcessor.FilterMode.INCLUDE, plan.getFilterMode());
+        assertNotSame(plan, processor.getPlan());
+        assertEquals(200, processor.getHue());
+
+        // Showing the frame unchanged doesn't need HSV or a mask
+        assertFalse(processor.getPlan().needsMask());
+        assertFalse(processor.getPlan().needsRangeMask());
+        processor.setFilterMode(FilterProcessor.FilterMode.SATURATION);
+        assertTrue(processor.getPlan().needsHsvOutput());
+
+        // Smoothing and reduction are settings of the plan, not of the shared term map
+        assertEquals(5, plan.getBlur());
+        assertEquals(TermMap.Smoothing.GAUSSIAN, plan.getSmoothing());
+        processor.setBlur(-7);
+        processor.setSmoothing(TermMap.Smoothing.BOX);
+        assertEquals(5, plan.getBlur());
+        assertEquals(-7, processor.getPlan().getBlur());
+        assertEquals(TermMap.Smoothing.BOX, processor.getSmoothing());
+        assertEquals(1, processor.getPlan().getDownscale(4000, 3000));
+        processor.setReducedResolution(true);
+        assertEquals(4, processor.getPlan().getDownscale(4000, 3000));
+        assertEquals(1, processor.getPlan().getDownscale(640, 480));
+    }
+
+    @Test
+    public void testRangeBitset() throws InterruptedException {
+        Mat image = new Mat(90, 130, CvType.CV_8UC3);
+        Core.randu(image, 0, 256);
+        DirectMat rgb = new DirectMat(90, 130, CvType.CV_8UC3);
+        image.copyTo(rgb);
+        DirectMat mask = new DirectMat(90, 130, CvType.CV_8UC1);
+        // The second and third ranges wrap past the ends of the hue range
+        int[][] settings = new int[][]{{200, 40, 60, 80}, {0, 30, 100, 100}, {350, 50, 20, 150}};
+        for (int[] setting : settings) {
+            processor.setFilterSettings(setting[0], setting[1], setting[2], setting[3], FilterProcessor.FilterMode.INCLUDE);
+            FilterPlan plan = processor.getPlan();
+            HsvRangeBitset bitset = HsvRangeBitset.build(plan);
+            assertTrue(bitset.matches(plan));
+            bitset.fillMask(rgb.getBuffer(), 90 * 130, mask.getBuffer());
+            Mat hsv = new Mat();
+            Imgproc.cvtColor(rgb, hsv, Imgproc.COLOR_RGB2HSV);
+            Mat expected = new Mat();
+            Core.inRange(hsv, plan.getLowerBound(), plan.getUpperBound(), expected);
+            if (plan.getWrapLowerBound() != null) {
+                Mat expected2 = new Mat();
+                Core.inRange(hsv, plan.getWrapLowerBound(), plan.getWrapUpperBound(), expected2);
+                Core.bitwise_or(expected, expected2, expected);
+            }
+            Mat diff = new Mat();
+            Core.compare(expected, mask, diff, Core.CMP_NE);
+            assertEquals("hue " + setting[0], 0, Core.countNonZero(diff));
+        }
+
+        // Frames are filtered the same way before and after the bitset is ready
+        processor.setChangeDetection(false);
+        Mat input = new Mat();
+        Imgproc.cvtColor(image, input, Imgproc.COLOR_RGB2RGBA);
+        Mat before = processor.process(input);
+        for (int i = 0; i < 100 && !processor.hasRangeBitset(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(processor.hasRangeBitset());
+        Mat after = processor.process(input);
+        assertEquals(0, countDifferences(before, after));
+        assertFalse(HsvRangeBitset.build(processor.getPlan()).matches(
+                processor.getPlan().toBuilder().setHue(10).build()));
+    }
+
+    @Test
+    public void testMatPool() {
+        MatPool pool = new MatPool();
+        Mat first = pool.acquire(10, 20, CvType.CV_8UC1);
+        pool.recycle(first);
+        assertEquals(1, pool.size());
+        assertSame(first, pool.acquire(10, 20, CvType.CV_8UC1));
+        assertEquals(0, pool.size());
+        pool.recycle(first);
+        Mat other = pool.acquire(10, 20, CvType.CV_8UC3);
+        assertNotSame(first, other);
+        assertEquals(CvType.CV_8UC3, other.type());
+        pool.recycle(other);
+        assertEquals(2, pool.size());
+        pool.clear();
+        assertEquals(0, pool.size());
+
+        // Recycled outputs are filled in completely when they are reused
+        FilterProcessor reference = new FilterProcessor();
+        processor.setChangeDetection(false);
+        Mat image = new Mat(120, 160, CvType.CV_8UC4, new Scalar(0, 0, 255, 255));
+        Imgproc.circle(image, new Point(60, 60), 30, new Scalar(255, 0, 0, 255), -1);
+        for (FilterProcessor.FilterMode mode : FilterProcessor.FilterMode.values()) {
+            processor.setFilterSettings(0, 30, 50, 50, mode);
+            reference.setFilterSettings(0, 30, 50, 50, mode);
+            Mat used = processor.process(image);
+            used.setTo(new Scalar(7, 7, 7));
+            processor.recycle(used);
+            Mat output = processor.process(image);
+            assertEquals(mode.toString(), 0, countDifferences(reference.process(image), output));
+            processor.recycle(output);
+        }
+        processor.releaseBuffers();
+    }
+
+    private static int countDifferences(Mat a, Mat b) {
+        Mat diff = new Mat();
+        Core.absdiff(a, b, diff);
+        Mat gray = new Mat();
+        Imgproc.cvtColor(diff, gray, Imgproc.COLOR_RGB2GRAY);
+        int count = Core.countNonZero(gray);
+        diff.release();
+        gray.release();
+        return count;
+    }
+}
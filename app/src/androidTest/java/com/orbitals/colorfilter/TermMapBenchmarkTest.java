@@ -0,0 +1,347 @@
+package com.orbitals.colorfilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ColorSpace;
+import android.util.Log;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the throughput of term map lookups on the bundled test images.  Timings are written
+ * to the log; the tests only fail if the results differ.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TermMapBenchmarkTest {
+    /**
+     * @noinspection SpellCheckingInspection
+     */
+    private static final String TAG = "com.orbitals.colorfilter.TermMapBenchmarkTest";
+    private static final int ITERATIONS = 5;
+    private static final int[] TEST_IMAGES = {
+            com.orbitals.colorfilter.test.R.drawable.test_image_bananas,
+            com.orbitals.colorfilter.test.R.drawable.test_image_flower,
+            com.orbitals.colorfilter.test.R.drawable.test_image_peppers,
+            com.orbitals.colorfilter.test.R.drawable.test_image_vegetation,
+    };
+
+    private Resources resources;
+    private final List<Mat> images = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        if (!OpenCVLoader.initLocal()) {
+            throw new RuntimeException("Failed to initialize OpenCV");
+        }
+        Context context = ApplicationProvider.getApplicationContext();
+        resources = context.getResources();
+
+        Resources testResources = InstrumentationRegistry.getInstrumentation().getContext().getResources();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        for (int imageId : TEST_IMAGES) {
+            Bitmap bitmap = BitmapFactory.decodeResource(testResources, imageId, options);
+            Mat image = new Mat();
+            Utils.bitmapToMat(bitmap, image);
+            bitmap.recycle();
+            Imgproc.cvtColor(image, image, Imgproc.COLOR_RGBA2RGB);
+            images.add(image);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (Mat image : images) {
+            image.release();
+        }
+        images.clear();
+    }
+
+    private List<TermMap> loadTermMaps(TermMap.Storage storage) {
+        List<TermMap> termMaps = TermMap.loadTermMaps(resources, ColorSpace.get(ColorSpace.Named.SRGB));
+        for (TermMap termMap : termMaps) {
+            termMap.setStorage(storage);
+            termMap.awaitStorage();
+        }
+        return termMaps;
+    }
+
+    /**
+     * Run createMap on every test image once to warm up, then time several iterations.
+     *
+     * @param termMap The term map to use.
+     * @return The average time in milliseconds to process all of the test images.
+     */
+    private double timeCreateMap(TermMap termMap) {
+        for (Mat image : images) {
+            termMap.createMap(image).release();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Mat image : images) {
+                termMap.createMap(image).release();
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    private void assertSameMaps(TermMap expected, TermMap actual) {
+        for (Mat image : images) {
+            Mat expectedMap = expected.createMap(image);
+            Mat actualMap = actual.createMap(image);
+            Mat diff = new Mat();
+            Core.compare(expectedMap, actualMap, diff, Core.CMP_NE);
+            assertEquals(0, Core.countNonZero(diff));
+            diff.release();
+            expectedMap.release();
+            actualMap.release();
+        }
+    }
+
+    @Test
+    public void benchmarkPackedStorage() {
+        List<TermMap> byteMaps = loadTermMaps(TermMap.Storage.BYTE);
+        List<TermMap> packedMaps = loadTermMaps(TermMap.Storage.PACKED);
+        for (int i = 0; i < byteMaps.size(); i++) {
+            TermMap byteMap = byteMaps.get(i);
+            TermMap packedMap = packedMaps.get(i);
+            assertSameMaps(byteMap, packedMap);
+            assertTrue(packedMap.getMapByteSize() <= byteMap.getMapByteSize());
+            Log.i(TAG, String.format("%s byte storage: %d bytes, %.1f ms; packed storage: %d bytes, %.1f ms",
+                    byteMap.getName(),
+                    byteMap.getMapByteSize(), timeCreateMap(byteMap),
+                    packedMap.getMapByteSize(), timeCreateMap(packedMap)));
+        }
+    }
+
+    @Test
+    public void benchmarkTwoLevelStorage() {
+        List<TermMap> byteMaps = loadTermMaps(TermMap.Storage.BYTE);
+        List<TermMap> twoLevelMaps = loadTermMaps(TermMap.Storage.TWO_LEVEL);
+        for (int i = 0; i < byteMaps.size(); i++) {
+            TermMap byteMap = byteMaps.get(i);
+            TermMap twoLevelMap = twoLevelMaps.get(i);
+            assertSameMaps(byteMap, twoLevelMap);
+            assertTrue(twoLevelMap.getMapByteSize() <= byteMap.getMapByteSize());
+            Log.i(TAG, String.format("%s byte storage: %d bytes, %.1f ms; two-level storage: %d bytes, %.1f ms",
+                    byteMap.getName(),
+                    byteMap.getMapByteSize(), timeCreateMap(byteMap),
+                    twoLevelMap.getMapByteSize(), timeCreateMap(twoLevelMap)));
+        }
+        Log.i(TAG, String.format("Shared refinement blocks: %d bytes", TermLut.getSharedByteSize()));
+    }
+
+    /**
+     * Time the stages of loading each term map with two-level storage: mapping or decoding the
+     * packed table, which is when lookups can start, building the two-level table in the
+     * background, and computing the term statistics on first use.  The cache directory is kept
+     * between runs, so only the first run decodes the resources.
+     */
+    @Test
+    public void benchmarkLoad() {
+        Context context = ApplicationProvider.getApplicationContext();
+        File cacheDir = new File(context.getCacheDir(), "benchmarkLoad");
+        assertTrue(cacheDir.isDirectory() || cacheDir.mkdirs());
+        for (TermMap termMap : TermMap.loadTermMaps(resources, ColorSpace.get(ColorSpace.Named.SRGB), cacheDir)) {
+            termMap.setStorage(TermMap.Storage.TWO_LEVEL);
+            long start = System.nanoTime();
+            termMap.awaitLoaded();
+            long loaded = System.nanoTime();
+            termMap.awaitStorage();
+            long converted = System.nanoTime();
+            assertTrue(termMap.getTermStats(0) != null);
+            long computed = System.nanoTime();
+            Log.i(TAG, String.format("%s load: %.1f ms; two-level build: %.1f ms; statistics: %.1f ms",
+                    termMap.getName(), (loaded - start) / 1e6, (converted - loaded) / 1e6,
+                    (computed - converted) / 1e6));
+        }
+    }
+
+    @Test
+    public void benchmarkMortonStorage() {
+        List<TermMap> byteMaps = loadTermMaps(TermMap.Storage.BYTE);
+        List<TermMap> mortonMaps = loadTermMaps(TermMap.Storage.MORTON);
+        for (int i = 0; i < byteMaps.size(); i++) {
+            TermMap byteMap = byteMaps.get(i);
+            TermMap mortonMap = mortonMaps.get(i);
+            assertSameMaps(byteMap, mortonMap);
+            Log.i(TAG, String.format("%s byte storage: %.1f ms; Morton storage: %.1f ms",
+                    byteMap.getName(), timeCreateMap(byteMap), timeCreateMap(mortonMap)));
+        }
+    }
+
+    private double timeCreateMask(TermMap termMap, boolean approximate) {
+        for (Mat image : images) {
+            termMap.createMask(image, 0, approximate).release();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Mat image : images) {
+                termMap.createMask(image, 0, approximate).release();
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    private double timeCreateFusedMask(TermMap termMap) {
+        Mat mask = new Mat();
+        for (Mat image : images) {
+            termMap.createFusedMask(image, 0, false, null, mask);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Mat image : images) {
+                termMap.createFusedMask(image, 0, false, null, mask);
+            }
+        }
+        mask.release();
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    @Test
+    public void benchmarkFusedMask() {
+        for (TermMap termMap : loadTermMaps(TermMap.Storage.TWO_LEVEL)) {
+            for (int blur : new int[]{0, 5}) {
+                termMap.setBlur(blur);
+                Log.i(TAG, String.format("%s blur %d: term image: %.1f ms; fused: %.1f ms",
+                        termMap.getName(), blur, timeCreateMask(termMap, false), timeCreateFusedMask(termMap)));
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkSmoothing() {
+        TermMap termMap = loadTermMaps(TermMap.Storage.TWO_LEVEL).get(0);
+        for (int blur : new int[]{-5, -15}) {
+            termMap.setBlur(blur);
+            termMap.setSmoothing(TermMap.Smoothing.GAUSSIAN);
+            List<Mat> expected = new ArrayList<>();
+            for (Mat image : images) {
+                expected.add(termMap.createMap(image));
+            }
+            for (TermMap.Smoothing smoothing : TermMap.Smoothing.values()) {
+                termMap.setSmoothing(smoothing);
+                long differ = 0;
+                long total = 0;
+                for (int i = 0; i < images.size(); i++) {
+                    Mat map = termMap.createMap(images.get(i));
+                    Mat diff = new Mat();
+                    Core.compare(expected.get(i), map, diff, Core.CMP_NE);
+                    differ += Core.countNonZero(diff);
+                    total += map.total();
+                    diff.release();
+                    map.release();
+                }
+                Log.i(TAG, String.format("blur %d %s: %.1f ms; %.2f%% of pixels differ from Gaussian",
+                        blur, smoothing, timeCreateMap(termMap), 100.0 * differ / total));
+            }
+            for (Mat map : expected) {
+                map.release();
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkModeFilter() {
+        TermMap termMap = loadTermMaps(TermMap.Storage.TWO_LEVEL).get(0);
+        int labels = termMap.getTerms().size();
+        for (int ksize : new int[]{3, 5, 15, 31}) {
+            double medianTime = 0;
+            double modeTime = 0;
+            for (Mat image : images) {
+                DirectMat terms = new DirectMat(image.rows(), image.cols(), CvType.CV_8UC1);
+                termMap.createMap(image, null, terms);
+                DirectMat smoothed = new DirectMat(image.rows(), image.cols(), CvType.CV_8UC1);
+                Imgproc.medianBlur(terms, smoothed, ksize);
+                ModeFilter.apply(terms, smoothed, ksize, labels, -1);
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    Imgproc.medianBlur(terms, smoothed, ksize);
+                }
+                medianTime += (System.nanoTime() - start) / 1e6 / ITERATIONS;
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    ModeFilter.apply(terms, smoothed, ksize, labels, -1);
+                }
+                modeTime += (System.nanoTime() - start) / 1e6 / ITERATIONS;
+                terms.release();
+                smoothed.release();
+            }
+            Log.i(TAG, String.format("ksize %d: median: %.1f ms; mode: %.1f ms", ksize, medianTime, modeTime));
+        }
+    }
+
+    @Test
+    public void benchmarkApproximate() throws InterruptedException {
+        for (TermMap termMap : loadTermMaps(TermMap.Storage.TWO_LEVEL)) {
+            termMap.prefetchApproximate();
+            for (int i = 0; i < 300 && !termMap.hasApproximate(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(termMap.hasApproximate());
+            StringBuilder imageErrors = new StringBuilder();
+            for (Mat image : images) {
+                imageErrors.append(String.format(" %.2f%%", termMap.measureApproximateError(image) * 100));
+            }
+            Log.i(TAG, String.format("%s exact: %.1f ms; approximate: %.1f ms; %.2f%% of colors differ; images differ by%s",
+                    termMap.getName(), timeCreateMask(termMap, false), timeCreateMask(termMap, true),
+                    termMap.getApproximateErrorRate() * 100, imageErrors));
+        }
+    }
+
+    @Test
+    public void benchmarkTileProcessor() {
+        TermMap termMap = loadTermMaps(TermMap.Storage.TWO_LEVEL).get(0);
+        List<Mat> expected = new ArrayList<>();
+        for (Mat image : images) {
+            expected.add(termMap.createMap(image));
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int parallelism : new int[]{1, Math.max(1, processors / 2), processors}) {
+                for (int tileSize : new int[]{4096, 16384, 65536, 262144}) {
+                    TileProcessor.setParallelism(parallelism);
+                    TileProcessor.setTileSize(tileSize);
+                    for (int i = 0; i < images.size(); i++) {
+                        Mat actual = termMap.createMap(images.get(i));
+                        Mat diff = new Mat();
+                        Core.compare(expected.get(i), actual, diff, Core.CMP_NE);
+                        assertEquals(0, Core.countNonZero(diff));
+                        diff.release();
+                        actual.release();
+                    }
+                    Log.i(TAG, String.format("%d threads, %d pixel tiles: %.1f ms",
+                            parallelism, tileSize, timeCreateMap(termMap)));
+                }
+            }
+        } finally {
+            TileProcessor.setParallelism(0);
+            TileProcessor.setTileSize(0);
+            for (Mat map : expected) {
+                map.release();
+            }
+        }
+    }
+}
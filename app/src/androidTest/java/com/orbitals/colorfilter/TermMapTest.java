@@ -1,12 +1,18 @@
 package com.orbitals.colorfilter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.ColorSpace;
 
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -15,12 +21,19 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(AndroidJUnit4.class)
 public class TermMapTest {
@@ -44,6 +57,10 @@ public class TermMapTest {
     }
 
     private TermMap loadTermMap() {
+        return loadTermMap(null);
+    }
+
+    private TermMap loadTermMap(File cacheDir) {
         Resources resources = context.getResources();
 
         // Load the first term map from term_map_ids array
@@ -85,7 +102,7 @@ public class TermMapTest {
         } finally {
             termMapArray.recycle();
         }
-        return new TermMap(name, id, description, reference, terms, resources, termMapResourceId);
+        return new TermMap(name, id, description, reference, terms, resources, termMapResourceId, cacheDir);
     }
 
     @Test
@@ -114,9 +131,101 @@ public class TermMapTest {
 
     @Test
     public void testGetMap() {
-        byte[] map = termMap.getMap();
+        TermLut map = termMap.getMap();
         assertNotNull(map);
-        assertEquals(4096 * 4096, map.length); // Map size should match 4096x4096
+        assertEquals(0, map.get(0)); // Black
+        assertEquals(19, map.get(0xFFFFFF)); // White
+    }
+
+    @Test
+    public void testSharedMap() {
+        TermMap other = loadTermMap();
+        termMap.awaitStorage();
+        other.awaitStorage();
+        assertSame(termMap.getMap(), other.getMap());
+    }
+
+    private static void assertSameEntries(String message, TermLut expected, TermLut actual) {
+        for (int i = 0; i < TermLut.ENTRIES; i++) {
+            if (expected.get(i) != actual.get(i)) {
+                assertEquals(message + " entry " + i, expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws InterruptedException {
+        TermMap lazyMap = loadTermMap();
+        assertFalse(lazyMap.isLoaded());
+        assertEquals(20, lazyMap.getTerms().size());
+        CountDownLatch latch = new CountDownLatch(1);
+        lazyMap.prefetch(latch::countDown);
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertTrue(lazyMap.isLoaded());
+    }
+
+    @Test
+    public void testBinaryTermMap() {
+        File cacheDir = new File(context.getCacheDir(), "termMapTest");
+        assertTrue(cacheDir.isDirectory() || cacheDir.mkdirs());
+        // The first load creates the binary file, the second maps the existing file
+        TermMap created = loadTermMap(cacheDir);
+        TermMap mapped = loadTermMap(cacheDir);
+        TermLut map = termMap.getMap();
+        assertSameEntries("created", map, created.getMap());
+        assertSameEntries("mapped", map, mapped.getMap());
+    }
+
+    @Test
+    public void testStorageMatches() {
+        TermLut map = termMap.getMap();
+        for (TermMap.Storage storage : TermMap.Storage.values()) {
+            TermMap storedMap = loadTermMap();
+            storedMap.setStorage(storage);
+            storedMap.awaitStorage();
+            assertSameEntries(storage.name(), map, storedMap.getMap());
+        }
+    }
+
+    @Test
+    public void testTwoLevelCapacity() {
+        // Random entries make every cell a distinct refinement block, far more than fit
+        ByteBuffer data = ByteBuffer.allocateDirect(TermLut.ENTRIES);
+        byte[] entries = new byte[TermLut.ENTRIES];
+        new Random(1).nextBytes(entries);
+        data.put(entries);
+        int blocks = TermLut.getSharedBlockCount();
+        assertNull(TermLut.twoLevel(TermLut.wrap(data, 8)));
+        assertTrue(TermLut.getSharedBlockCount() <= blocks);
+    }
+
+    @Test
+    public void testSetParallelismWhileRunning() throws InterruptedException {
+        int length = TileProcessor.getTileSize() * 8;
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch resized = new CountDownLatch(1);
+        AtomicInteger processed = new AtomicInteger();
+        Thread worker = new Thread(() -> TileProcessor.run(length, (start, end) -> {
+            running.countDown();
+            try {
+                assertTrue(resized.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.addAndGet(end - start);
+        }));
+        worker.start();
+        int parallelism = TileProcessor.getParallelism();
+        try {
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            // The run that is in progress keeps its pool until it returns
+            TileProcessor.setParallelism(parallelism == 1 ? 2 : 1);
+            resized.countDown();
+            worker.join(10000);
+            assertEquals(length, processed.get());
+        } finally {
+            TileProcessor.setParallelism(parallelism);
+        }
     }
 
     @Test
@@ -130,6 +239,30 @@ public class TermMapTest {
         assertEquals(0, termMap.getBlur());
     }
 
+    @Test
+    public void testSmoothing() {
+        assertEquals(TermMap.Smoothing.GAUSSIAN, termMap.getSmoothing());
+        Mat inputImage = new Mat(120, 160, CvType.CV_8UC3, new Scalar(200, 40, 40));
+        Imgproc.rectangle(inputImage, new org.opencv.core.Point(40, 30), new org.opencv.core.Point(119, 89),
+                new Scalar(30, 160, 60), -1);
+        termMap.setBlur(0);
+        Mat expected = termMap.createMap(inputImage);
+        org.opencv.core.Rect[] flat = new org.opencv.core.Rect[]{
+                new org.opencv.core.Rect(0, 0, 25, 120), new org.opencv.core.Rect(55, 45, 50, 30)};
+        termMap.setBlur(-7);
+        for (TermMap.Smoothing smoothing : TermMap.Smoothing.values()) {
+            termMap.setSmoothing(smoothing);
+            Mat map = termMap.createMap(inputImage);
+            // Away from the edge of the rectangle, smoothing doesn't change the colors
+            for (org.opencv.core.Rect region : flat) {
+                Mat diff = new Mat();
+                Core.compare(expected.submat(region), map.submat(region), diff, Core.CMP_NE);
+                assertEquals(smoothing + " " + region, 0, Core.countNonZero(diff));
+            }
+        }
+        termMap.setSmoothing(TermMap.Smoothing.GAUSSIAN);
+    }
+
     @Test
     public void testCreateMask() {
         // Create a sample input image
@@ -146,4 +279,390 @@ public class TermMapTest {
         assertEquals(256, mask.cols());
         assertEquals(CvType.CV_8UC1, mask.type()); // Mask should be single-channel
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTermStats() {
+        TermStats black = termMap.getTermStats(0);
+        assertNotNull(black);
+        assertTrue(black.contains(0, 0, 0));
+        assertFalse(black.contains(255, 255, 255));
+        assertTrue(black.getCentroidRed() < 128);
+        TermStats white = termMap.getTermStats(19);
+        assertTrue(white.contains(255, 255, 255));
+        long total = 0;
+        for (int term = 0; term < termMap.getTerms().size(); term++) {
+            total += termMap.getTermStats(term).getCount();
+        }
+        assertEquals(TermLut.ENTRIES, total);
+        assertNull(termMap.getTermStats(termMap.getTerms().size()));
+    }
+
+    @Test
+    public void testCreateMaskMatchesMap() {
+        Mat inputImage = new Mat(64, 64, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        termMap.setBlur(0);
+        Mat map = termMap.createMap(inputImage);
+        for (int term = 0; term < termMap.getTerms().size(); term++) {
+            Mat expected = new Mat();
+            Core.compare(map, new Scalar(term), expected, Core.CMP_EQ);
+            Mat mask = termMap.createMask(inputImage, term);
+            Mat diff = new Mat();
+            Core.compare(expected, mask, diff, Core.CMP_NE);
+            assertEquals(0, Core.countNonZero(diff));
+        }
+    }
+
+    @Test
+    public void testTermBitset() {
+        TermLut map = termMap.getMap();
+        for (int term : new int[]{0, 4, 19}) {
+            TermBitset bitset = TermBitset.build(map, termMap.getTermStats(term));
+            for (int i = 0; i < TermLut.ENTRIES; i++) {
+                if (bitset.contains(i) != (map.get(i) == term)) {
+                    assertEquals("term " + term + " entry " + i, map.get(i) == term, bitset.contains(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrefetchTerm() throws InterruptedException {
+        assertFalse(termMap.hasTermBitset(3));
+        termMap.prefetchTerm(3);
+        for (int i = 0; i < 300 && !termMap.hasTermBitset(3); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(termMap.hasTermBitset(3));
+        termMap.setBlur(0);
+        testCreateMaskMatchesMap();
+    }
+
+    @Test
+    public void testApproximate() throws InterruptedException {
+        assertTrue(Double.isNaN(termMap.getApproximateErrorRate()));
+        termMap.prefetchApproximate();
+        for (int i = 0; i < 300 && !termMap.hasApproximate(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(termMap.hasApproximate());
+        double errorRate = termMap.getApproximateErrorRate();
+        assertTrue(errorRate > 0 && errorRate < 0.1);
+
+        Mat inputImage = new Mat(64, 64, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        double imageErrorRate = termMap.measureApproximateError(inputImage);
+        assertTrue(imageErrorRate >= 0 && imageErrorRate < 0.2);
+        Mat mask = termMap.createMask(inputImage, 0, true);
+        assertEquals(64, mask.rows());
+        assertEquals(64, mask.cols());
+        assertEquals(CvType.CV_8UC1, mask.type());
+    }
+
+    @Test
+    public void testColorSpace() throws InterruptedException {
+        assertTrue(termMap.isLoaded(null));
+        assertTrue(termMap.isLoaded(termMap.getColorSpace()));
+        ColorSpace adobeRgb = ColorSpace.get(ColorSpace.Named.ADOBE_RGB);
+        assertFalse(termMap.isLoaded(adobeRgb));
+        CountDownLatch latch = new CountDownLatch(1);
+        termMap.prefetchColorSpace(adobeRgb, latch::countDown);
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertTrue(termMap.isLoaded(adobeRgb));
+
+        Mat inputImage = new Mat(64, 64, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        Mat expected = termMap.createMap(inputImage);
+        Mat same = termMap.createMap(inputImage, termMap.getColorSpace());
+        Mat diff = new Mat();
+        Core.compare(expected, same, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+        // Adobe RGB is wider than sRGB, so saturated colors can change terms but neutral ones
+        // should not
+        Mat gray = new Mat(4, 4, CvType.CV_8UC3, new Scalar(128, 128, 128));
+        Mat grayExpected = termMap.createMap(gray);
+        Mat grayAdobe = termMap.createMap(gray, adobeRgb);
+        assertEquals(grayExpected.get(0, 0)[0], grayAdobe.get(0, 0)[0], 0);
+        Mat mask = termMap.createMask(inputImage, 0, false, adobeRgb);
+        assertEquals(64, mask.rows());
+        assertEquals(CvType.CV_8UC1, mask.type());
+    }
+
+    @Test
+    public void testCreateMapDestination() {
+        Mat inputImage = new Mat(64, 64, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        Mat expected = termMap.createMap(inputImage);
+        Mat dest = new Mat();
+        assertSame(dest, termMap.createMap(inputImage, termMap.getColorSpace(), dest));
+        long dataAddr = dest.dataAddr();
+        Mat diff = new Mat();
+        Core.compare(expected, dest, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+        // Reusing the destination for the same size doesn't reallocate it
+        termMap.createMap(inputImage, termMap.getColorSpace(), dest);
+        assertEquals(dataAddr, dest.dataAddr());
+
+        Mat expectedMask = termMap.createMask(inputImage, 0);
+        Mat mask = new Mat();
+        termMap.createMask(inputImage, 0, false, null, mask);
+        dataAddr = mask.dataAddr();
+        Core.compare(expectedMask, mask, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+        termMap.createMask(inputImage, 0, false, null, mask);
+        assertEquals(dataAddr, mask.dataAddr());
+    }
+
+    @Test
+    public void testDirectMat() {
+        Mat inputImage = new Mat(64, 48, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        DirectMat directImage = new DirectMat(64, 48, CvType.CV_8UC3);
+        assertTrue(directImage.isDirect());
+        inputImage.copyTo(directImage);
+        assertTrue(directImage.isDirect());
+        DirectMat dest = new DirectMat(64, 48, CvType.CV_8UC1);
+        termMap.createMap(directImage, null, dest);
+        assertTrue(dest.isDirect());
+        Mat expected = termMap.createMap(inputImage);
+        Mat diff = new Mat();
+        Core.compare(expected, dest, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+        assertEquals((int) expected.get(10, 20)[0], dest.getBuffer().get(10 * 48 + 20));
+
+        // Submatrices aren't continuous, so they are copied
+        Mat region = directImage.submat(8, 40, 8, 40);
+        Mat regionMap = termMap.createMap(region);
+        Core.compare(expected.submat(8, 40, 8, 40), regionMap, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+
+        Mat expectedMask = termMap.createMask(inputImage, 0);
+        DirectMat mask = new DirectMat(64, 48, CvType.CV_8UC1);
+        termMap.createMask(directImage, 0, false, null, mask);
+        assertTrue(mask.isDirect());
+        Core.compare(expectedMask, mask, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+
+        assertSame(directImage, DirectMat.reuse(directImage, 64, 48, CvType.CV_8UC3));
+        DirectMat resized = DirectMat.reuse(directImage, 32, 48, CvType.CV_8UC3);
+        assertNotSame(directImage, resized);
+        assertTrue(resized.isDirect());
+    }
+
+    @Test
+    public void testFusedMask() {
+        Mat inputImage = new Mat(64, 64, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        Imgproc.rectangle(inputImage, new org.opencv.core.Point(8, 8), new org.opencv.core.Point(40, 30),
+                new Scalar(0, 0, 0), -1);
+        // Small tiles split the smoothed mask into many bands of rows, down to one row each
+        try {
+            for (int tileSize : new int[]{1, 256, TileProcessor.DEFAULT_TILE_SIZE}) {
+                TileProcessor.setTileSize(tileSize);
+                for (int blur : new int[]{0, 5}) {
+                    termMap.setBlur(blur);
+                    for (int term = 0; term < termMap.getTerms().size(); term++) {
+                        // A fused mask keeps pixels where the term is the most common term in the window
+                        Mat expected = termMap.createMask(inputImage, term, false, null, new Mat());
+                        Mat mask = termMap.createFusedMask(inputImage, term, false, null, new Mat());
+                        Mat diff = new Mat();
+                        Core.compare(expected, mask, diff, Core.CMP_NE);
+                        assertEquals("tile " + tileSize + " blur " + blur + " term " + term, 0,
+                                Core.countNonZero(diff));
+                    }
+                }
+            }
+        } finally {
+            TileProcessor.setTileSize(0);
+        }
+    }
+
+    @Test
+    public void testModeFilter() {
+        int width = 97;
+        int height = 61;
+        int labels = 6;
+        DirectMat src = new DirectMat(height, width, CvType.CV_8UC1);
+        DirectMat dest = new DirectMat(height, width, CvType.CV_8UC1);
+        ByteBuffer data = src.getBuffer();
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Blocks of labels with some noise, so both uniform and mixed windows occur
+                int label = random.nextInt(8) == 0 ? random.nextInt(labels) : (x / 13 + y / 9 * 2) % labels;
+                data.put(y * width + x, (byte) label);
+            }
+        }
+        // Small tiles split the image into many bands of rows, down to one row each
+        try {
+            for (int tileSize : new int[]{1, 300, TileProcessor.DEFAULT_TILE_SIZE}) {
+                TileProcessor.setTileSize(tileSize);
+                for (int ksize : new int[]{3, 7, 15}) {
+                    ModeFilter.apply(src, dest, ksize, labels, -1);
+                    int radius = ksize / 2;
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            int[] counts = new int[labels];
+                            for (int dy = -radius; dy <= radius; dy++) {
+                                for (int dx = -radius; dx <= radius; dx++) {
+                                    int row = Math.max(0, Math.min(height - 1, y + dy));
+                                    int col = Math.max(0, Math.min(width - 1, x + dx));
+                                    counts[data.get(row * width + col)]++;
+                                }
+                            }
+                            int mode = 0;
+                            for (int label = 1; label < labels; label++) {
+                                if (counts[label] > counts[mode]) {
+                                    mode = label;
+                                }
+                            }
+                            assertEquals("tile " + tileSize + " ksize " + ksize + " at " + x + ", " + y, mode,
+                                    dest.getBuffer().get(y * width + x));
+                        }
+                    }
+                }
+            }
+        } finally {
+            TileProcessor.setTileSize(0);
+        }
+
+        // Labels past the count, such as 255 for unknown pixels, are counted as one label
+        for (int x = 0; x < width; x++) {
+            data.put(x, (byte) 255);
+            data.put(width + x, (byte) (labels + x % 2));
+        }
+        ModeFilter.apply(src, dest, 3, labels, -1);
+        assertEquals(labels, dest.getBuffer().get(width / 2));
+        ModeFilter.apply(src, dest, 3, labels, 0);
+        assertEquals(0, dest.getBuffer().get(width / 2));
+
+        // Masks smoothed after lookup are the mode filtered terms
+        Mat inputImage = new Mat(64, 64, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        termMap.setBlur(5);
+        Mat map = termMap.createMap(inputImage);
+        DirectMat terms = new DirectMat(64, 64, CvType.CV_8UC1);
+        map.copyTo(terms);
+        DirectMat expected = new DirectMat(64, 64, CvType.CV_8UC1);
+        for (int term = 0; term < termMap.getTerms().size(); term++) {
+            ModeFilter.apply(terms, expected, 5, termMap.getTerms().size(), term);
+            Mat mask = termMap.createMask(inputImage, term);
+            Mat diff = new Mat();
+            Core.compare(expected, mask, diff, Core.CMP_NE);
+            assertEquals("term " + term, 0, Core.countNonZero(diff));
+        }
+    }
+
+    @Test
+    public void testCoverage() {
+        Mat inputImage = new Mat(200, 150, CvType.CV_8UC3);
+        Core.randu(inputImage, 0, 256);
+        Mat map = new Mat();
+        TermCoverage coverage = new TermCoverage();
+        termMap.createMap(inputImage, null, map, coverage);
+        byte[] terms = new byte[200 * 150];
+        map.get(0, 0, terms);
+        long[] expected = new long[256];
+        for (byte term : terms) {
+            expected[term & 0xFF]++;
+        }
+        assertEquals(terms.length, coverage.getTotal());
+        for (int term = 0; term < 256; term++) {
+            assertEquals("term " + term, expected[term], coverage.getCount(term));
+        }
+        List<Integer> present = coverage.getTerms(0);
+        for (int i = 1; i < present.size(); i++) {
+            assertTrue(coverage.getCount(present.get(i - 1)) >= coverage.getCount(present.get(i)));
+        }
+
+        // Masks count every pixel while they are made, with or without smoothing
+        for (int blur : new int[]{0, 5}) {
+            termMap.setBlur(blur);
+            TermCoverage maskCoverage = new TermCoverage();
+            termMap.createFusedMask(inputImage, 0, false, null, new Mat(), 1, maskCoverage);
+            TermCoverage labelCoverage = new TermCoverage();
+            termMap.createMask(inputImage, 0, false, null, new Mat(), 1, labelCoverage);
+            for (int term = 0; term < 256; term++) {
+                assertEquals("blur " + blur + " term " + term, expected[term], maskCoverage.getCount(term));
+                assertEquals("blur " + blur + " term " + term, expected[term], labelCoverage.getCount(term));
+            }
+        }
+    }
+
+    @Test
+    public void testReducedResolution() {
+        // Solid rectangles whose edges don't fall on the edges of the reduced pixels
+        Mat inputImage = new Mat(96, 128, CvType.CV_8UC3, new Scalar(255, 255, 255));
+        Imgproc.rectangle(inputImage, new org.opencv.core.Point(9, 13), new org.opencv.core.Point(70, 50),
+                new Scalar(255, 0, 0), -1);
+        Imgproc.rectangle(inputImage, new org.opencv.core.Point(45, 31), new org.opencv.core.Point(117, 83),
+                new Scalar(0, 0, 255), -1);
+        Imgproc.rectangle(inputImage, new org.opencv.core.Point(21, 61), new org.opencv.core.Point(38, 90),
+                new Scalar(0, 255, 0), -1);
+        termMap.setBlur(0);
+        Mat map = termMap.createMap(inputImage);
+        for (int downscale : new int[]{2, 4}) {
+            termMap.setDownscale(downscale);
+            assertEquals(downscale, termMap.getDownscale());
+            for (int term = 0; term < termMap.getTerms().size(); term++) {
+                Mat expected = new Mat();
+                Core.compare(map, new Scalar(term), expected, Core.CMP_EQ);
+                Mat mask = termMap.createMask(inputImage, term);
+                assertEquals(inputImage.rows(), mask.rows());
+                assertEquals(inputImage.cols(), mask.cols());
+                Mat diff = new Mat();
+                Core.compare(expected, mask, diff, Core.CMP_NE);
+                assertEquals("downscale " + downscale + " term " + term, 0, Core.countNonZero(diff));
+            }
+        }
+        termMap.setDownscale(1);
+        assertThrows(IllegalArgumentException.class, () -> termMap.setDownscale(3));
+    }
+
+    @Test
+    public void testYuvMap() throws InterruptedException {
+        assertFalse(termMap.hasYuvMap());
+        CountDownLatch latch = new CountDownLatch(1);
+        termMap.prefetchYuv(latch::countDown);
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertTrue(termMap.hasYuvMap());
+
+        // An NV12 frame with padded rows
+        int width = 64;
+        int height = 48;
+        int rowStride = 80;
+        Random random = new Random(1);
+        byte[] data = new byte[rowStride * height];
+        random.nextBytes(data);
+        ByteBuffer y = ByteBuffer.allocateDirect(data.length).put(data);
+        random.nextBytes(data);
+        ByteBuffer uv = ByteBuffer.allocateDirect(rowStride * height / 2).put(data, 0, rowStride * height / 2);
+        y.position(0);
+        uv.position(1);
+        ByteBuffer v = uv.slice();
+        uv.position(0);
+        YuvFrame frame = new YuvFrame(width, height, y, rowStride, uv, v, rowStride);
+
+        Mat rgb = frame.toRgba(new Mat());
+        Imgproc.cvtColor(rgb, rgb, Imgproc.COLOR_RGBA2RGB);
+        Mat expected = termMap.createMap(rgb);
+        Mat actual = termMap.createMap(frame, new Mat());
+        Mat diff = new Mat();
+        Core.compare(expected, actual, diff, Core.CMP_NE);
+        assertEquals(0, Core.countNonZero(diff));
+        Mat mask = termMap.createMask(frame, 0, new Mat());
+        assertEquals(height, mask.rows());
+        assertEquals(width, mask.cols());
+
+        // Fused masks are the same as masks from the image of the terms
+        termMap.setDownscale(1);
+        for (int blur : new int[]{0, 5}) {
+            termMap.setBlur(blur);
+            for (int term = 0; term < termMap.getTerms().size(); term++) {
+                Core.compare(termMap.createMask(frame, term, new Mat()), termMap.createFusedMask(frame, term, new Mat()),
+                        diff, Core.CMP_NE);
+                assertEquals("blur " + blur + " term " + term, 0, Core.countNonZero(diff));
+            }
+        }
+    }
+}
@@ -75,6 +75,7 @@ public class CameraController {
     private float mMinZoom;
     private float mMaxZoom;
     private Matrix matrix;
+    private Bitmap bmp;
     private final ImageReader.OnImageAvailableListener imageAvailableListener = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader reader) {
@@ -82,35 +83,54 @@ public class CameraController {
                 if (image == null) {
                     return;
                 }
-                Mat rgbMat;
-                try {
-                    rgbMat = Utilities.rgba(image);
-                } catch (IllegalStateException e) {
-                    return;
-                } catch (Exception e) {
-                    Log.e(TAG, "Error getting image", e);
-                    return;
+                Mat processedMat = null;
+                // Classify directly from the YUV planes when the filter can; otherwise convert
+                // the frame to RGB first
+                YuvFrame frame = filter.getSampleMode() ? null : YuvFrame.from(image);
+                if (frame != null) {
+                    try {
+                        processedMat = filter.process(frame);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Failed to process using filter", e);
+                        return;
+                    }
                 }
+                if (processedMat == null) {
+                    Mat rgbMat;
+                    try {
+                        rgbMat = Utilities.rgba(image);
+                    } catch (IllegalStateException e) {
+                        return;
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error getting image", e);
+                        return;
+                    }
 
-                if (filter.getSampleMode()) {
-                    Mat centerChunk = Utilities.centerOfImage(context, textureView, filter, rgbMat, matrix);
-                    if (filter.sampleRegion(centerChunk) && updateCallback != null) {
-                        ((Activity) context).runOnUiThread(updateCallback::onFilterUpdated);
+                    if (filter.getSampleMode()) {
+                        Mat centerChunk = Utilities.centerOfImage(context, textureView, filter, rgbMat, matrix);
+                        if (filter.sampleRegion(centerChunk) && updateCallback != null) {
+                            ((Activity) context).runOnUiThread(updateCallback::onFilterUpdated);
+                        }
+                        centerChunk.release();
+                    }
+                    try {
+                        processedMat = filter.process(rgbMat, true);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Failed to process using filter", e);
+                        return;
+                    } finally {
+                        rgbMat.release();
                     }
-                    centerChunk.release();
-                }
-                Mat processedMat;
-                try {
-                    processedMat = filter.process(rgbMat);
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to process using filter", e);
-                    rgbMat.release();
-                    return;
                 }
 
-                // Convert back to Bitmap for display
-                Bitmap bmp = Bitmap.createBitmap(processedMat.cols(), processedMat.rows(), Bitmap.Config.ARGB_8888);
-                Utils.matToBitmap(processedMat, bmp);
+                // Convert back to Bitmap for display.  If nothing changed, the previous bitmap
+                // is drawn again.
+                if (bmp == null || bmp.getWidth() != processedMat.cols() || bmp.getHeight() != processedMat.rows()) {
+                    bmp = Bitmap.createBitmap(processedMat.cols(), processedMat.rows(), Bitmap.Config.ARGB_8888);
+                    Utils.matToBitmap(processedMat, bmp);
+                } else if (!filter.isFrameUnchanged()) {
+                    Utils.matToBitmap(processedMat, bmp);
+                }
 
                 Canvas canvas = textureView.lockCanvas();
                 if (canvas != null) {
@@ -134,10 +154,10 @@ public class CameraController {
                     matrix.postTranslate(dx, dy);
                     canvas.drawBitmap(bmp, matrix, null);
                     Utilities.drawSamplingCircle(context, filter, canvas);
+                    Utilities.drawTermCoverage(context, filter, canvas);
                     textureView.unlockCanvasAndPost(canvas);
                 }
-                rgbMat.release();
-                processedMat.release();
+                filter.recycle(processedMat);
             }
         }
     };
@@ -240,7 +260,7 @@ public class CameraController {
             CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
             StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
             assert map != null;
-            imageDimension = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class), textureView.getWidth(), textureView.getHeight());
+            setImageDimension(chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class), textureView.getWidth(), textureView.getHeight()));
 
             if (checkCameraPermissions.get()) {
                 return;
@@ -380,6 +400,8 @@ public class CameraController {
                 imageReader.close();
                 imageReader = null;
             }
+            // No more frames arrive, so the filter's working images aren't needed
+            filter.releaseBuffers();
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -399,14 +421,27 @@ public class CameraController {
                 StreamConfigurationMap map = manager.getCameraCharacteristics(cameraId)
                         .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
                 assert map != null;
-                imageDimension = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        textureView.getWidth(), textureView.getHeight());
+                setImageDimension(chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
+                        textureView.getWidth(), textureView.getHeight()));
             } catch (CameraAccessException e) {
                 Log.e(TAG, "Failed to get camera characteristics", e);
             }
         }
     }
 
+    /**
+     * Set the preview size.  If it changes, the filter's working images for the old size are
+     * released.
+     *
+     * @param size The new preview size.
+     */
+    private void setImageDimension(Size size) {
+        if (imageDimension != null && !imageDimension.equals(size)) {
+            filter.releaseBuffers();
+        }
+        imageDimension = size;
+    }
+
     protected void startBackgroundThread() {
         backgroundThread = new HandlerThread("Camera Background");
         backgroundThread.start();
@@ -0,0 +1,215 @@
+package com.orbitals.colorfilter;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tracks which parts of a stream of frames change so that only those parts are filtered again.
+ * Each frame is reduced to a thumbnail with one value per block of pixels, and the frame is
+ * divided into square tiles of blocks.  A tile has changed if any of its thumbnail values differ
+ * from the values when the tile was last filtered by more than a tolerance, which allows for
+ * camera noise.  The filtered output of the previous frame is kept so that unchanged tiles can
+ * be reused from it.
+ */
+public class ChangeTracker {
+    /**
+     * The number of pixels across a block.  Each block is one thumbnail value.
+     */
+    public static final int BLOCK_SIZE = 8;
+    /**
+     * The number of blocks across a tile.
+     */
+    public static final int TILE_BLOCKS = 8;
+    /**
+     * The number of pixels across a tile.
+     */
+    public static final int TILE_SIZE = BLOCK_SIZE * TILE_BLOCKS;
+    /**
+     * If more than this fraction of the tiles change, it is faster to filter the whole frame.
+     */
+    private static final double MAX_CHANGED_FRACTION = 1.0 / 3;
+
+    private DirectMat thumbnail;
+    private byte[] current;
+    private byte[] reference;
+    private int referenceWidth;
+    private int referenceHeight;
+    private int referenceType = -1;
+    private Object[] settings;
+    private final Mat output = new Mat();
+    private boolean valid;
+    private boolean unchanged;
+
+    /**
+     * Get the image to write the thumbnail of the next frame into.
+     *
+     * @param width  The frame width.
+     * @param height The frame height.
+     * @param type   An 8-bit OpenCV type for the thumbnail.
+     * @return An image with one pixel for each block of the frame, rounding up.
+     */
+    public DirectMat getThumbnail(int width, int height, int type) {
+        int cols = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int rows = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        thumbnail = DirectMat.reuse(thumbnail, rows, cols, type);
+        return thumbnail;
+    }
+
+    /**
+     * Compare the thumbnail of the next frame to the reference values.  Once the frame has been
+     * filtered, either setOutput or setUpdated must be called, or the next frame is filtered in
+     * full.
+     *
+     * @param width     The frame width.
+     * @param height    The frame height.
+     * @param tolerance The largest difference in a thumbnail value that is not a change.
+     * @param settings  Everything other than the frame that affects the output.  If any of
+     *                  these differ from the previous frame, all of the tiles have changed.
+     * @param partial   If false, the whole frame is filtered if any tile has changed, such as
+     *                  when something is computed over the whole frame.
+     * @return null if the whole frame needs to be filtered, otherwise the tiles that have
+     * changed in pixels, which may be empty.  The reference values of these tiles are updated.
+     */
+    public List<Rect> update(int width, int height, int tolerance, Object[] settings, boolean partial) {
+        boolean wasValid = valid;
+        valid = false;
+        unchanged = false;
+        int size = (int) (thumbnail.total() * thumbnail.channels());
+        if (current == null || current.length != size) {
+            current = new byte[size];
+        }
+        ByteBuffer data = thumbnail.getBuffer().duplicate();
+        data.position(0);
+        data.get(current, 0, size);
+        int type = thumbnail.type();
+        if (!wasValid || reference == null || reference.length != size || referenceWidth != width ||
+                referenceHeight != height || referenceType != type || !Arrays.equals(this.settings, settings)) {
+            byte[] swap = reference;
+            reference = current;
+            current = swap;
+            referenceWidth = width;
+            referenceHeight = height;
+            referenceType = type;
+            this.settings = settings;
+            return null;
+        }
+        int rowLength = thumbnail.cols() * thumbnail.channels();
+        int tileLength = TILE_BLOCKS * thumbnail.channels();
+        int rows = thumbnail.rows();
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        List<Rect> changed = new ArrayList<>();
+        for (int ty = 0; ty < tilesDown; ty++) {
+            int rowEnd = Math.min(rows, (ty + 1) * TILE_BLOCKS);
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                int start = tx * tileLength;
+                int end = Math.min(rowLength, start + tileLength);
+                if (tileChanged(ty * TILE_BLOCKS, rowEnd, start, end, rowLength, tolerance)) {
+                    int x = tx * TILE_SIZE;
+                    int y = ty * TILE_SIZE;
+                    changed.add(new Rect(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y)));
+                }
+            }
+        }
+        if (changed.size() > MAX_CHANGED_FRACTION * tilesAcross * tilesDown || (!partial && !changed.isEmpty())) {
+            System.arraycopy(current, 0, reference, 0, size);
+            return null;
+        }
+        for (Rect tile : changed) {
+            int start = tile.x / BLOCK_SIZE * thumbnail.channels();
+            int end = Math.min(rowLength, start + tileLength);
+            int rowEnd = Math.min(rows, tile.y / BLOCK_SIZE + TILE_BLOCKS);
+            for (int row = tile.y / BLOCK_SIZE; row < rowEnd; row++) {
+                System.arraycopy(current, row * rowLength + start, reference, row * rowLength + start, end - start);
+            }
+        }
+        unchanged = changed.isEmpty();
+        return changed;
+    }
+
+    private boolean tileChanged(int rowStart, int rowEnd, int start, int end, int rowLength, int tolerance) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            for (int i = row * rowLength + start, last = row * rowLength + end; i < last; i++) {
+                if (Math.abs((current[i] & 0xFF) - (reference[i] & 0xFF)) > tolerance) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keep a copy of the output of a frame that was filtered in full.
+     *
+     * @param output The filtered frame.
+     */
+    public void setOutput(Mat output) {
+        output.copyTo(this.output);
+        valid = true;
+    }
+
+    /**
+     * Get the output of the previous frame.  Changed tiles should be written into this.
+     *
+     * @return The previous output.
+     */
+    public Mat getOutput() {
+        return output;
+    }
+
+    /**
+     * Record that the changed tiles have been written into the previous output.
+     */
+    public void setUpdated() {
+        valid = true;
+    }
+
+    /**
+     * Forget the previous frame so that the next frame is filtered in full.
+     */
+    public void invalidate() {
+        valid = false;
+        unchanged = false;
+    }
+
+    /**
+     * @return true if the most recent frame had no changed tiles, so its output is the same as
+     * the frame before it.
+     */
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * Get the number of pixels a changed tile must be extended by on each side so that filters
+     * that look at neighboring pixels give the same result as on the whole frame.
+     *
+     * @param reach How far the filters read from a pixel, from TermMap.getReach.
+     * @return A margin in pixels.  This is a multiple of 8, so that tiles extended by it still
+     * start on the blocks of a reduced frame and of the half size image used for smoothing it.
+     */
+    public static int getMargin(int reach) {
+        return (reach + 7) & ~7;
+    }
+
+    /**
+     * Extend a tile by a margin, keeping it within the frame.
+     *
+     * @param tile   The tile.
+     * @param margin The margin in pixels.
+     * @param width  The frame width.
+     * @param height The frame height.
+     * @return The extended rectangle.
+     */
+    public static Rect extend(Rect tile, int margin, int width, int height) {
+        int x = Math.max(0, tile.x - margin);
+        int y = Math.max(0, tile.y - margin);
+        return new Rect(x, y, Math.min(width, tile.x + tile.width + margin) - x,
+                Math.min(height, tile.y + tile.height + margin) - y);
+    }
+}
@@ -0,0 +1,72 @@
+package com.orbitals.colorfilter;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An 8-bit OpenCV image whose pixels are stored in a direct ByteBuffer.  OpenCV functions read
+ * and write the same memory as the buffer, so Java code can work on the pixels in place instead
+ * of copying them to and from arrays with get and put.
+ */
+public class DirectMat extends Mat {
+    private final ByteBuffer buffer;
+    private final long dataAddr;
+
+    private DirectMat(int rows, int cols, int type, ByteBuffer buffer) {
+        super(rows, cols, type, buffer);
+        this.buffer = buffer;
+        this.dataAddr = dataAddr();
+    }
+
+    /**
+     * Create an image.  The pixels are not initialized.
+     *
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param type An 8-bit OpenCV type, such as CvType.CV_8UC3.
+     */
+    public DirectMat(int rows, int cols, int type) {
+        this(rows, cols, type, TermLut.allocate(rows * cols * CvType.channels(type)));
+    }
+
+    /**
+     * Get an image of a specific size and type, reusing an existing one if it matches.
+     *
+     * @param mat  Either null or an image that may be reused.  If it isn't reused, it is
+     *             released.
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param type An 8-bit OpenCV type.
+     * @return An image of the requested size and type.
+     */
+    public static DirectMat reuse(DirectMat mat, int rows, int cols, int type) {
+        if (mat != null) {
+            if (mat.rows() == rows && mat.cols() == cols && mat.type() == type && mat.isDirect()) {
+                return mat;
+            }
+            mat.release();
+        }
+        return new DirectMat(rows, cols, type);
+    }
+
+    /**
+     * Check if the image still uses the buffer.  OpenCV reallocates an image that is used as
+     * the destination of an operation with a different size or type, after which the buffer is
+     * no longer the image's data.
+     *
+     * @return true if the buffer holds the image's pixels.
+     */
+    public boolean isDirect() {
+        return dataAddr != 0 && dataAddr() == dataAddr && isContinuous();
+    }
+
+    /**
+     * @return The pixels of the image, row by row with no padding.  The buffer's position and
+     * limit are not used.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
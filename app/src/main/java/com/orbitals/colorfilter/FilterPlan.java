@@ -0,0 +1,370 @@
+package com.orbitals.colorfilter;
+
+import org.opencv.core.Scalar;
+
+import java.util.Objects;
+
+/**
+ * An immutable snapshot of a FilterProcessor's settings, compiled into the stages a frame needs.
+ * Settings are changed by building a new plan and publishing it, so a frame that is being
+ * processed on another thread keeps using the plan it started with and never sees a mix of old
+ * and new settings.
+ */
+public class FilterPlan {
+    private final int hue;
+    private final int hueWidth;
+    private final int satThreshold;
+    private final int lumThreshold;
+    private final int term;
+    private final TermMap termMap;
+    private final FilterProcessor.FilterMode filterMode;
+    private final boolean useLumSatBCT;
+    private final boolean sampleMode;
+    private final boolean approximateLive;
+    private final boolean reducedResolution;
+    private final boolean changeDetection;
+    private final boolean fusedMask;
+    private final boolean coverageEnabled;
+    private final int blur;
+    private final TermMap.Smoothing smoothing;
+
+    private final boolean maskNeeded;
+    private final boolean rangeMask;
+    private final boolean hsvOutput;
+    private final Scalar lowerBound;
+    private final Scalar upperBound;
+    private final Scalar wrapLowerBound;
+    private final Scalar wrapUpperBound;
+
+    private FilterPlan(Builder builder) {
+        hue = builder.hue;
+        hueWidth = builder.hueWidth;
+        satThreshold = builder.satThreshold;
+        lumThreshold = builder.lumThreshold;
+        term = builder.term;
+        termMap = builder.termMap;
+        filterMode = builder.filterMode;
+        useLumSatBCT = builder.useLumSatBCT;
+        sampleMode = builder.sampleMode;
+        approximateLive = builder.approximateLive;
+        reducedResolution = builder.reducedResolution;
+        changeDetection = builder.changeDetection;
+        fusedMask = builder.fusedMask;
+        coverageEnabled = builder.coverageEnabled;
+        blur = builder.blur;
+        smoothing = builder.smoothing;
+
+        maskNeeded = filterMode != FilterProcessor.FilterMode.NONE;
+        rangeMask = maskNeeded && (termMap == null || useLumSatBCT);
+        hsvOutput = filterMode == FilterProcessor.FilterMode.SATURATION;
+        // With a TermMap, the thresholds only apply to saturation and luminance
+        int lowerHue = termMap != null ? 0 : (int) (hue / 2.0 - hueWidth / 2.0);
+        int upperHue = termMap != null ? 360 / 2 : (int) (hue / 2.0 + hueWidth / 2.0);
+        lowerBound = new Scalar(Math.max(0, lowerHue), satThreshold, lumThreshold);
+        upperBound = new Scalar(Math.min(180, upperHue), 255, 255);
+        // Hue wraps around, so a range past either end needs a second range
+        if (lowerHue < 0) {
+            wrapLowerBound = new Scalar(lowerHue + 180, satThreshold, lumThreshold);
+            wrapUpperBound = new Scalar(180, 255, 255);
+        } else if (upperHue > 180) {
+            wrapLowerBound = new Scalar(0, satThreshold, lumThreshold);
+            wrapUpperBound = new Scalar(upperHue - 180, 255, 255);
+        } else {
+            wrapLowerBound = null;
+            wrapUpperBound = null;
+        }
+    }
+
+    /**
+     * @return A builder for the default settings.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return A builder that starts with the settings of this plan.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public int getHue() {
+        return hue;
+    }
+
+    public int getHueWidth() {
+        return hueWidth;
+    }
+
+    public int getSatThreshold() {
+        return satThreshold;
+    }
+
+    public int getLumThreshold() {
+        return lumThreshold;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public TermMap getTermMap() {
+        return termMap;
+    }
+
+    public FilterProcessor.FilterMode getFilterMode() {
+        return filterMode;
+    }
+
+    public boolean getUseLumSatBCT() {
+        return useLumSatBCT;
+    }
+
+    public boolean getSampleMode() {
+        return sampleMode;
+    }
+
+    public boolean getApproximateLive() {
+        return approximateLive;
+    }
+
+    public boolean getReducedResolution() {
+        return reducedResolution;
+    }
+
+    public boolean getChangeDetection() {
+        return changeDetection;
+    }
+
+    public boolean getFusedMask() {
+        return fusedMask;
+    }
+
+    public boolean getCoverageEnabled() {
+        return coverageEnabled;
+    }
+
+    public int getBlur() {
+        return blur;
+    }
+
+    public TermMap.Smoothing getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * Get the factor to reduce an image by before terms are looked up.  When parts of an image
+     * are processed separately, this should be found once for the whole image so that each part
+     * is reduced the same way.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @return 1, 2, or 4.
+     */
+    public int getDownscale(int width, int height) {
+        return reducedResolution ? TermMap.getAutoDownscale(width, height) : 1;
+    }
+
+    /**
+     * @return true if the filter mode uses a mask.  Without one, the frame is shown unchanged.
+     */
+    public boolean needsMask() {
+        return maskNeeded;
+    }
+
+    /**
+     * @return true if pixels are thresholded by hue, saturation, and luminance.
+     */
+    public boolean needsRangeMask() {
+        return rangeMask;
+    }
+
+    /**
+     * @return true if the output is made from the frame in HSV.  Thresholds also need the frame
+     * in HSV until a range bitset for them is built.
+     */
+    public boolean needsHsvOutput() {
+        return hsvOutput;
+    }
+
+    /**
+     * Check if another plan thresholds pixels the same way, so that a range bitset built for one
+     * can be used for the other.
+     *
+     * @param other Another plan.
+     * @return true if both plans threshold pixels and have the same ranges.
+     */
+    public boolean hasSameRange(FilterPlan other) {
+        return rangeMask && other.rangeMask && lowerBound.equals(other.lowerBound) &&
+                upperBound.equals(other.upperBound) && Objects.equals(wrapLowerBound, other.wrapLowerBound) &&
+                Objects.equals(wrapUpperBound, other.wrapUpperBound);
+    }
+
+    /**
+     * @return true if the frame can be filtered from its YUV planes, which only handles settings
+     * that depend on nothing but the term.
+     */
+    public boolean canUseYuv() {
+        return termMap != null && !useLumSatBCT && filterMode != FilterProcessor.FilterMode.SATURATION;
+    }
+
+    Scalar getLowerBound() {
+        return lowerBound;
+    }
+
+    Scalar getUpperBound() {
+        return upperBound;
+    }
+
+    /**
+     * @return Either null or the lower bound of a second hue range when the hue range wraps.
+     */
+    Scalar getWrapLowerBound() {
+        return wrapLowerBound;
+    }
+
+    Scalar getWrapUpperBound() {
+        return wrapUpperBound;
+    }
+
+    /**
+     * Get the current term as a string.
+     *
+     * @return The current term.  An empty string if none.
+     */
+    public String getCurrentTerm() {
+        if (termMap == null || term < 0 || term >= termMap.getTerms().size()) {
+            return "";
+        }
+        return termMap.getTerms().get(term);
+    }
+
+    /**
+     * Collects settings for a new plan.
+     */
+    public static class Builder {
+        private int hue = 0;
+        private int hueWidth = 14;
+        private int satThreshold = 100;
+        private int lumThreshold = 100;
+        private int term = 0;
+        private TermMap termMap;
+        private FilterProcessor.FilterMode filterMode = FilterProcessor.FilterMode.NONE;
+        private boolean useLumSatBCT = true;
+        private boolean sampleMode = false;
+        private boolean approximateLive = false;
+        private boolean reducedResolution = false;
+        private boolean changeDetection = false;
+        private boolean fusedMask = true;
+        private boolean coverageEnabled = false;
+        private int blur = 5;
+        private TermMap.Smoothing smoothing = TermMap.Smoothing.GAUSSIAN;
+
+        private Builder() {
+        }
+
+        private Builder(FilterPlan plan) {
+            hue = plan.hue;
+            hueWidth = plan.hueWidth;
+            satThreshold = plan.satThreshold;
+            lumThreshold = plan.lumThreshold;
+            term = plan.term;
+            termMap = plan.termMap;
+            filterMode = plan.filterMode;
+            useLumSatBCT = plan.useLumSatBCT;
+            sampleMode = plan.sampleMode;
+            approximateLive = plan.approximateLive;
+            reducedResolution = plan.reducedResolution;
+            changeDetection = plan.changeDetection;
+            fusedMask = plan.fusedMask;
+            coverageEnabled = plan.coverageEnabled;
+            blur = plan.blur;
+            smoothing = plan.smoothing;
+        }
+
+        public Builder setHue(int hue) {
+            this.hue = hue;
+            return this;
+        }
+
+        public Builder setHueWidth(int hueWidth) {
+            this.hueWidth = hueWidth;
+            return this;
+        }
+
+        public Builder setSatThreshold(int satThreshold) {
+            this.satThreshold = satThreshold;
+            return this;
+        }
+
+        public Builder setLumThreshold(int lumThreshold) {
+            this.lumThreshold = lumThreshold;
+            return this;
+        }
+
+        public Builder setTerm(int term) {
+            this.term = term;
+            return this;
+        }
+
+        public Builder setTermMap(TermMap termMap) {
+            this.termMap = termMap;
+            return this;
+        }
+
+        public Builder setFilterMode(FilterProcessor.FilterMode filterMode) {
+            this.filterMode = filterMode;
+            return this;
+        }
+
+        public Builder setUseLumSatBCT(boolean useLumSatBCT) {
+            this.useLumSatBCT = useLumSatBCT;
+            return this;
+        }
+
+        public Builder setSampleMode(boolean sampleMode) {
+            this.sampleMode = sampleMode;
+            return this;
+        }
+
+        public Builder setApproximateLive(boolean approximateLive) {
+            this.approximateLive = approximateLive;
+            return this;
+        }
+
+        public Builder setReducedResolution(boolean reducedResolution) {
+            this.reducedResolution = reducedResolution;
+            return this;
+        }
+
+        public Builder setChangeDetection(boolean changeDetection) {
+            this.changeDetection = changeDetection;
+            return this;
+        }
+
+        public Builder setFusedMask(boolean fusedMask) {
+            this.fusedMask = fusedMask;
+            return this;
+        }
+
+        public Builder setCoverageEnabled(boolean coverageEnabled) {
+            this.coverageEnabled = coverageEnabled;
+            return this;
+        }
+
+        public Builder setBlur(int blur) {
+            this.blur = blur;
+            return this;
+        }
+
+        public Builder setSmoothing(TermMap.Smoothing smoothing) {
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        public FilterPlan build() {
+            return new FilterPlan(this);
+        }
+    }
+}
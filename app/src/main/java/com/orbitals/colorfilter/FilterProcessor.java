@@ -1,16 +1,25 @@
 package com.orbitals.colorfilter;
 
+import android.graphics.ColorSpace;
 import android.util.Log;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 public class FilterProcessor {
 
@@ -18,6 +27,15 @@ public class FilterProcessor {
      * @noinspection SpellCheckingInspection
      */
     private static final String TAG = "com.orbitals.colorfilter.ImageFilterProcessor";
+    /**
+     * The largest change in the average of a block of pixels of a live frame that is treated as
+     * noise rather than a change in the scene.
+     */
+    private static final int LIVE_CHANGE_TOLERANCE = 2;
+    /**
+     * The number of recent colors each tile remembers when converting an image to sRGB.
+     */
+    private static final int SRGB_CACHE_SIZE = 1024;
 
     public enum FilterMode {
         NONE,
@@ -27,18 +45,50 @@ public class FilterProcessor {
         SATURATION
     }
 
-    private int hue = 0;
-    private int hueWidth = 14;
-    private int satThreshold = 100;
-    private int lumThreshold = 100;
-    private int term = 0;
-    private boolean useLumSatBCT = true;
-    private boolean sampleMode = false;
-    private TermMap termMap;
-    private FilterMode filterMode = FilterMode.NONE;
+    /**
+     * The current settings.  Setters publish a new plan, and each frame uses the plan that is
+     * current when it starts.
+     */
+    private final AtomicReference<FilterPlan> plan = new AtomicReference<>(FilterPlan.builder().build());
+    private volatile TermCoverage coverage;
     private String lastCurrentTerm;
+    private volatile Runnable termMapLoadedListener;
 
     private int sampleSize = 40;  // in dp
+    /**
+     * RGB frames and term masks are written into per-thread images in direct buffers that are
+     * reused from frame to frame, so the term lookup works on them without copying.  Sampled term
+     * maps are reused the same way.
+     */
+    private final ThreadLocal<DirectMat> rgbFrame = new ThreadLocal<>();
+    private final ThreadLocal<DirectMat> termMask = new ThreadLocal<>();
+    private final ThreadLocal<DirectMat> rgbaFrame = new ThreadLocal<>();
+    private final ThreadLocal<Mat> sampleTerms = ThreadLocal.withInitial(Mat::new);
+    private final ThreadLocal<byte[]> sampleData = new ThreadLocal<>();
+    /**
+     * The previous outputs kept by the change trackers.  A frame with no changes returns its
+     * tracker's output itself rather than a copy, so recycle must not take it.
+     */
+    private final Set<Mat> keptOutputs = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    /**
+     * The previous frame processed on each thread, so that its unchanged tiles can be reused.
+     */
+    private final ThreadLocal<ChangeTracker> changeTracker = ThreadLocal.withInitial(() -> {
+        ChangeTracker tracker = new ChangeTracker();
+        keptOutputs.add(tracker.getOutput());
+        return tracker;
+    });
+    /**
+     * Working images and outputs of the frames, reused once they are recycled.
+     */
+    private final MatPool matPool = new MatPool();
+    /**
+     * Range bitsets are built one at a time in the background.
+     */
+    private static final ExecutorService rangeExecutor = Executors.newSingleThreadExecutor();
+    private final Object rangeLock = new Object();
+    private volatile HsvRangeBitset rangeBitset;
+    private FilterPlan pendingRange;
 
     /**
      * Set several settings at once.
@@ -50,11 +100,8 @@ public class FilterProcessor {
      * @param filterMode   One of the FilterMode enum values.
      */
     public void setFilterSettings(int hue, int hueWidth, int satThreshold, int lumThreshold, FilterMode filterMode) {
-        this.hue = hue;
-        this.hueWidth = hueWidth;
-        this.satThreshold = satThreshold;
-        this.lumThreshold = lumThreshold;
-        this.filterMode = filterMode;
+        update(builder -> builder.setHue(hue).setHueWidth(hueWidth).setSatThreshold(satThreshold)
+                .setLumThreshold(lumThreshold).setFilterMode(filterMode));
     }
 
     /**
@@ -69,61 +116,149 @@ public class FilterProcessor {
      * @param termMap      Either null for no TermMap or a TermMap.
      */
     public void setFilterSettings(int hue, int hueWidth, int satThreshold, int lumThreshold, int term, FilterMode filterMode, TermMap termMap) {
-        setFilterSettings(hue, hueWidth, satThreshold, lumThreshold, filterMode);
-        this.term = term;
-        this.termMap = termMap;
+        update(builder -> builder.setHue(hue).setHueWidth(hueWidth).setSatThreshold(satThreshold)
+                .setLumThreshold(lumThreshold).setTerm(term).setFilterMode(filterMode).setTermMap(termMap));
+    }
+
+    /**
+     * Publish a new plan made by changing the current one.  If another thread publishes a plan
+     * at the same time, the change is applied again to that plan.
+     *
+     * @param change A function that changes the settings.  This may be called more than once.
+     * @return The new plan.
+     */
+    private FilterPlan update(UnaryOperator<FilterPlan.Builder> change) {
+        FilterPlan current = plan.updateAndGet(previous -> change.apply(previous.toBuilder()).build());
+        prefetchRangeBitset(current);
+        return current;
+    }
+
+    /**
+     * Get the range bitset for the thresholds of a plan if it has been built.  If it hasn't, this
+     * requests that it be built in the background.
+     *
+     * @param plan The plan.
+     * @return The bitset or null if it isn't ready.
+     */
+    private HsvRangeBitset getRangeBitset(FilterPlan plan) {
+        HsvRangeBitset bitset = rangeBitset;
+        if (bitset != null && bitset.matches(plan)) {
+            return bitset;
+        }
+        prefetchRangeBitset(plan);
+        return null;
+    }
+
+    /**
+     * @return true if the range bitset for the current thresholds has been built.
+     */
+    boolean hasRangeBitset() {
+        HsvRangeBitset bitset = rangeBitset;
+        return bitset != null && bitset.matches(plan.get());
+    }
+
+    /**
+     * Start building the range bitset for the thresholds of a plan, unless it is built, being
+     * built, or the plan doesn't threshold pixels.  Only the most recent bitset is kept, and a
+     * request is skipped if the thresholds have changed again before it starts, so moving a
+     * slider doesn't queue a bitset for every position.
+     *
+     * @param plan The plan.
+     */
+    private void prefetchRangeBitset(FilterPlan plan) {
+        if (!plan.needsRangeMask()) {
+            return;
+        }
+        synchronized (rangeLock) {
+            HsvRangeBitset bitset = rangeBitset;
+            if ((bitset != null && bitset.matches(plan)) || (pendingRange != null && pendingRange.hasSameRange(plan))) {
+                return;
+            }
+            pendingRange = plan;
+        }
+        rangeExecutor.execute(() -> {
+            HsvRangeBitset built = null;
+            try {
+                if (this.plan.get().hasSameRange(plan)) {
+                    long start = System.nanoTime();
+                    built = HsvRangeBitset.build(plan);
+                    Log.d(TAG, "Built range bitset in " + (System.nanoTime() - start) / 1000000 + " ms");
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to build range bitset", e);
+            }
+            synchronized (rangeLock) {
+                if (pendingRange == plan) {
+                    pendingRange = null;
+                }
+                if (built != null) {
+                    rangeBitset = built;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The current settings.  The plan doesn't change, so several settings read from it
+     * are consistent with each other.
+     */
+    public FilterPlan getPlan() {
+        return plan.get();
     }
 
     public FilterMode getFilterMode() {
-        return filterMode;
+        return plan.get().getFilterMode();
     }
 
     public void setFilterMode(FilterMode filterMode) {
-        this.filterMode = filterMode;
+        update(builder -> builder.setFilterMode(filterMode));
     }
 
     public int getHue() {
-        return hue;
+        return plan.get().getHue();
     }
 
     public void setHue(int hue) {
-        this.hue = hue;
+        update(builder -> builder.setHue(hue));
     }
 
     public int getHueWidth() {
-        return hueWidth;
+        return plan.get().getHueWidth();
     }
 
     public void setHueWidth(int hueWidth) {
-        this.hueWidth = hueWidth;
+        update(builder -> builder.setHueWidth(hueWidth));
     }
 
     public int getSatThreshold() {
-        return satThreshold;
+        return plan.get().getSatThreshold();
     }
 
     public void setSatThreshold(int satThreshold) {
-        this.satThreshold = satThreshold;
+        update(builder -> builder.setSatThreshold(satThreshold));
     }
 
     public int getLumThreshold() {
-        return lumThreshold;
+        return plan.get().getLumThreshold();
     }
 
     public void setLumThreshold(int lumThreshold) {
-        this.lumThreshold = lumThreshold;
+        update(builder -> builder.setLumThreshold(lumThreshold));
     }
 
     public int getTerm() {
-        return term;
+        return plan.get().getTerm();
     }
 
     public void setTerm(int term) {
-        this.term = term;
+        TermMap termMap = update(builder -> builder.setTerm(term)).getTermMap();
+        if (termMap != null) {
+            termMap.prefetchTerm(term);
+        }
     }
 
     public TermMap getTermMap() {
-        return termMap;
+        return plan.get().getTermMap();
     }
 
     /**
@@ -133,16 +268,55 @@ public class FilterProcessor {
      * @param termMap Either null or a TermMap.
      */
     public void setTermMap(TermMap termMap) {
-        if (this.termMap != null) {
-            lastCurrentTerm = getCurrentTerm();
+        FilterPlan previous = plan.get();
+        if (previous.getTermMap() != null) {
+            lastCurrentTerm = previous.getCurrentTerm();
         }
-        this.termMap = termMap;
-        if (termMap != null && lastCurrentTerm != null && termMap.getTerms().contains(lastCurrentTerm)) {
-            term = termMap.getTerms().indexOf(lastCurrentTerm);
+        String lastTerm = lastCurrentTerm;
+        FilterPlan current = plan.updateAndGet(p -> {
+            int term = p.getTerm();
+            if (termMap != null && lastTerm != null && termMap.getTerms().contains(lastTerm)) {
+                term = termMap.getTerms().indexOf(lastTerm);
+            }
+            if (termMap != null && term >= termMap.getTerms().size()) {
+                term = termMap.getTerms().size() - 1;
+            }
+            return p.toBuilder().setTermMap(termMap).setTerm(term).build();
+        });
+        prefetchRangeBitset(current);
+        if (termMap != null) {
+            termMap.prefetch(termMapLoadedListener);
+            termMap.prefetchTerm(current.getTerm());
+            if (current.getApproximateLive()) {
+                termMap.prefetchApproximate();
+            }
         }
-        if (termMap != null && term >= termMap.getTerms().size()) {
-            term = termMap.getTerms().size() - 1;
+    }
+
+    /**
+     * Set a callback that is run when a TermMap that was requested by this processor finishes
+     * loading.  This is called on the loading thread.
+     *
+     * @param termMapLoadedListener Either null or a callback.
+     */
+    public void setTermMapLoadedListener(Runnable termMapLoadedListener) {
+        this.termMapLoadedListener = termMapLoadedListener;
+    }
+
+    /**
+     * Check if a TermMap, if any, can be used without waiting for it to load.  If it can't, this
+     * requests that it load in the background.
+     *
+     * @param termMap    Either null or the TermMap of the plan being used.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @return True if there is no TermMap or it is loaded for the color space.
+     */
+    private boolean termMapReady(TermMap termMap, ColorSpace colorSpace) {
+        if (termMap == null || termMap.isLoaded(colorSpace)) {
+            return true;
         }
+        termMap.prefetchColorSpace(colorSpace, termMapLoadedListener);
+        return false;
     }
 
     /**
@@ -151,26 +325,85 @@ public class FilterProcessor {
      * @return The current term.  An empty string if none.
      */
     public String getCurrentTerm() {
-        if (termMap == null || term >= termMap.getTerms().size()) {
-            return "";
-        }
-        return termMap.getTerms().get(term);
+        return plan.get().getCurrentTerm();
     }
 
     public void setUseLumSatBCT(boolean useLumSatBCT) {
-        this.useLumSatBCT = useLumSatBCT;
+        update(builder -> builder.setUseLumSatBCT(useLumSatBCT));
     }
 
     public boolean getUseLumSatBCT() {
-        return useLumSatBCT;
+        return plan.get().getUseLumSatBCT();
     }
 
     public void setSampleMode(boolean sampleMode) {
-        this.sampleMode = sampleMode;
+        update(builder -> builder.setSampleMode(sampleMode));
     }
 
     public boolean getSampleMode() {
-        return sampleMode;
+        return plan.get().getSampleMode();
+    }
+
+    /**
+     * Use the approximate term table for live frames.  This is faster but some colors near the
+     * boundaries between terms are misclassified.  Static images always use the exact table.
+     *
+     * @param approximateLive true to use the approximate table for live frames.
+     */
+    public void setApproximateLive(boolean approximateLive) {
+        TermMap termMap = update(builder -> builder.setApproximateLive(approximateLive)).getTermMap();
+        if (approximateLive && termMap != null) {
+            termMap.prefetchApproximate();
+        }
+    }
+
+    public boolean getApproximateLive() {
+        return plan.get().getApproximateLive();
+    }
+
+    /**
+     * Classify large images at a reduced resolution.  Terms are looked up and smoothed on a
+     * smaller copy of the image and only pixels near the edges of the mask are looked up at full
+     * resolution.
+     *
+     * @param reducedResolution true to reduce large images.
+     */
+    public void setReducedResolution(boolean reducedResolution) {
+        update(builder -> builder.setReducedResolution(reducedResolution));
+    }
+
+    public boolean getReducedResolution() {
+        return plan.get().getReducedResolution();
+    }
+
+    /**
+     * Set the blur used to reduce variations in the terms.  This is kept with the other
+     * settings rather than on the term map, which may be shared with other filters.
+     *
+     * @param blur Either 0 or an odd number.  If negative, the image is smoothed before the
+     *             terms are looked up.  If positive, each pixel is set to the most common term
+     *             in the window around it.
+     */
+    public void setBlur(int blur) {
+        update(builder -> builder.setBlur(blur));
+    }
+
+    public int getBlur() {
+        return plan.get().getBlur();
+    }
+
+    /**
+     * Set how images are smoothed before terms are looked up.  This only matters when the blur
+     * is negative.
+     *
+     * @param smoothing The smoothing method.
+     */
+    public void setSmoothing(TermMap.Smoothing smoothing) {
+        update(builder -> builder.setSmoothing(smoothing));
+    }
+
+    public TermMap.Smoothing getSmoothing() {
+        return plan.get().getSmoothing();
     }
 
     public int getSampleSize() {
@@ -186,92 +419,572 @@ public class FilterProcessor {
 
     /**
      * Process an input matrix image, filtering it based on the current filter mode and other
-     * parameters.
+     * parameters.  If the current TermMap hasn't finished loading, the image is returned
+     * unfiltered.
      *
-     * @param input An image matrix in RGBA format.  Modified to RGB.
+     * @param input An image matrix in RGBA format.  This is not modified.
      * @return An image matrix in RGB format with the image applied.
      */
     public Mat process(Mat input) {
+        return process(input, false);
+    }
+
+    /**
+     * Process an input matrix image, filtering it based on the current filter mode and other
+     * parameters.  If the current TermMap hasn't finished loading, the image is returned
+     * unfiltered.
+     *
+     * @param input An image matrix in RGBA format.  This is not modified.
+     * @param live  true if this is a live camera frame, in which case the approximate term table
+     *              is used if that is enabled.
+     * @return An image matrix in RGB format with the image applied.
+     */
+    public Mat process(Mat input, boolean live) {
+        return process(input, live, null);
+    }
+
+    /**
+     * Process an input matrix image, filtering it based on the current filter mode and other
+     * parameters.  If the current TermMap hasn't finished loading or doesn't have a table for the
+     * image's color space yet, the image is returned unfiltered.  Hue, saturation, and luminance
+     * are always measured on the image converted to sRGB, so the thresholds mean the same for
+     * images in any color space.  The result can be passed to recycle once it is no longer
+     * needed.  With change detection, a frame with no changes returns the same image as the
+     * frame before it, which must not be modified.
+     *
+     * @param input      An image matrix in RGBA format.  This is not modified.
+     * @param live       true if this is a live camera frame, in which case the approximate term
+     *                   table is used if that is enabled.
+     * @param colorSpace The color space of the image or null for the term map's color space,
+     *                   which is taken to be sRGB for the thresholds.
+     * @return An image matrix in RGB format with the image applied.
+     */
+    public Mat process(Mat input, boolean live, ColorSpace colorSpace) {
+        FilterPlan plan = this.plan.get();
+        TermMap termMap = plan.getTermMap();
+        ChangeTracker tracker = changeTracker.get();
+        int width = input.cols();
+        int height = input.rows();
+        if (!termMapReady(termMap, colorSpace)) {
+            tracker.invalidate();
+            Mat output = matPool.acquire(height, width, CvType.CV_8UC3);
+            Imgproc.cvtColor(input, output, Imgproc.COLOR_RGBA2RGB);
+            return output;
+        }
+        int downscale = plan.getDownscale(width, height);
+        // Coverage is counted over whole frames, so it can't be updated one tile at a time
+        TermCoverage frameCoverage = plan.getCoverageEnabled() && termMap != null ? new TermCoverage() : null;
+        List<Rect> tiles = null;
+        if (plan.getChangeDetection()) {
+            // The thumbnail is taken from the input, so an unchanged frame isn't converted
+            DirectMat thumbnail = tracker.getThumbnail(width, height, input.type());
+            Imgproc.resize(input, thumbnail, thumbnail.size(), 0, 0, Imgproc.INTER_AREA);
+            tiles = tracker.update(width, height, live ? LIVE_CHANGE_TOLERANCE : 0,
+                    getChangeSettings(plan, false, live, colorSpace, downscale, frameCoverage != null),
+                    frameCoverage == null);
+            if (tiles != null && tiles.isEmpty()) {
+                tracker.setUpdated();
+                return tracker.getOutput();
+            }
+        } else {
+            tracker.invalidate();
+        }
+        DirectMat rgb = DirectMat.reuse(rgbFrame.get(), height, width, CvType.CV_8UC3);
+        rgbFrame.set(rgb);
+        Imgproc.cvtColor(input, rgb, Imgproc.COLOR_RGBA2RGB);
+        if (tiles == null) {
+            DirectMat termMask = DirectMat.reuse(this.termMask.get(), height, width, CvType.CV_8UC1);
+            this.termMask.set(termMask);
+            Mat output = filter(plan, rgb, live, colorSpace, downscale, termMask, frameCoverage);
+            publishCoverage(frameCoverage);
+            if (plan.getChangeDetection()) {
+                tracker.setOutput(output);
+            }
+            return output;
+        }
+        Mat previous = tracker.getOutput();
+        int margin = ChangeTracker.getMargin(termMap != null ?
+                TermMap.getReach(plan.getBlur(), plan.getSmoothing(), downscale) : 0);
+        for (Rect tile : tiles) {
+            Rect region = ChangeTracker.extend(tile, margin, width, height);
+            Mat regionRgb = rgb.submat(region);
+            Mat regionMask = matPool.acquire(region.height, region.width, CvType.CV_8UC1);
+            Mat regionOutput = filter(plan, regionRgb, live, colorSpace, downscale, regionMask, null);
+            copyTile(regionOutput, region, tile, previous);
+            matPool.recycle(regionOutput);
+            matPool.recycle(regionMask);
+            regionRgb.release();
+        }
+        tracker.setUpdated();
+        return copyOutput(previous);
+    }
+
+    /**
+     * Filter an RGB image.
+     *
+     * @param plan       The settings to use.
+     * @param rgb        The image in RGB format.  This is not modified.
+     * @param live       true if this is a live camera frame.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @param downscale  The factor to reduce the image by before looking up terms.
+     * @param termMask   The destination for the term mask.
+     * @param coverage   Either null or counts of the terms that are added to while they are
+     *                   looked up.
+     * @return An image matrix in RGB format with the filter applied.
+     */
+    private Mat filter(FilterPlan plan, Mat rgb, boolean live, ColorSpace colorSpace, int downscale, Mat termMask,
+                       TermCoverage coverage) {
+        int rows = rgb.rows();
+        int cols = rgb.cols();
+        TermMap termMap = plan.getTermMap();
         Mat mask = null;
-        Imgproc.cvtColor(input, input, Imgproc.COLOR_RGBA2RGB);
-        Mat hsv = new Mat();
-        Imgproc.cvtColor(input, hsv, Imgproc.COLOR_RGB2HSV);
-        if (termMap == null || useLumSatBCT) {
-            // Define lower and upper bounds for the hue range
-            int lowerHue = (int) (hue / 2.0 - hueWidth / 2.0);
-            int upperHue = (int) (hue / 2.0 + hueWidth / 2.0);
-            if (termMap != null) {
-                lowerHue = 0;
-                upperHue = 360 / 2;
+        Mat hsv = null;
+        // Hue, saturation, and luminance are defined on sRGB values, so images in other color
+        // spaces are converted for that stage; the terms are still looked up in the image's own
+        // color space
+        DirectMat srgb = null;
+        Mat hsvSource = rgb;
+        if ((plan.needsHsvOutput() || plan.needsRangeMask()) && needsSrgbConversion(colorSpace)) {
+            srgb = convertToSrgb(rgb, colorSpace);
+            hsvSource = srgb;
+        }
+        // Until the range bitset is built, thresholds are applied to the frame in HSV
+        HsvRangeBitset bitset = plan.needsRangeMask() ? getRangeBitset(plan) : null;
+        if (plan.needsHsvOutput() || (plan.needsRangeMask() && bitset == null)) {
+            hsv = matPool.acquire(rows, cols, CvType.CV_8UC3);
+            Imgproc.cvtColor(hsvSource, hsv, Imgproc.COLOR_RGB2HSV);
+        }
+        if (bitset != null) {
+            DirectMat rangeMask = matPool.acquire(rows, cols, CvType.CV_8UC1);
+            DirectMat rgbCopy = null;
+            ByteBuffer rgbData;
+            if (hsvSource instanceof DirectMat && ((DirectMat) hsvSource).isDirect()) {
+                rgbData = ((DirectMat) hsvSource).getBuffer();
+            } else {
+                // Tiles of a frame aren't contiguous, so they are copied
+                rgbCopy = matPool.acquire(rows, cols, CvType.CV_8UC3);
+                hsvSource.copyTo(rgbCopy);
+                rgbData = rgbCopy.getBuffer();
             }
-            Scalar lowerBound = new Scalar(Math.max(0, lowerHue), satThreshold, lumThreshold);
-            Scalar upperBound = new Scalar(Math.min(180, upperHue), 255, 255);
-
-            mask = new Mat();
-            Core.inRange(hsv, lowerBound, upperBound, mask);
-
-            // Handle hue wrapping
-            if (lowerHue < 0 || upperHue > 180) {
-                Mat mask2 = new Mat();
-                if (lowerHue < 0) {
-                    Core.inRange(hsv, new Scalar(lowerHue + 180, satThreshold, lumThreshold), new Scalar(180, 255, 255), mask2);
-                } else {
-                    Core.inRange(hsv, new Scalar(0, satThreshold, lumThreshold), new Scalar(upperHue - 180, 255, 255), mask2);
-                }
+            bitset.fillMask(rgbData, rows * cols, rangeMask.getBuffer());
+            matPool.recycle(rgbCopy);
+            mask = rangeMask;
+        } else if (plan.needsRangeMask()) {
+            mask = matPool.acquire(rows, cols, CvType.CV_8UC1);
+            Core.inRange(hsv, plan.getLowerBound(), plan.getUpperBound(), mask);
+            if (plan.getWrapLowerBound() != null) {
+                Mat mask2 = matPool.acquire(rows, cols, CvType.CV_8UC1);
+                Core.inRange(hsv, plan.getWrapLowerBound(), plan.getWrapUpperBound(), mask2);
                 Core.bitwise_or(mask, mask2, mask);
-                mask2.release();
+                matPool.recycle(mask2);
             }
         }
-        Mat output = Mat.zeros(input.size(), input.type());
-        if (termMap != null) {
-            Mat termMask = termMap.createMask(input, term);
-            if (useLumSatBCT && mask != null) {
+        Mat output = matPool.acquire(rows, cols, rgb.type());
+        // The term mask is also made when nothing uses it if the terms are being counted
+        if (termMap != null && (plan.needsMask() || coverage != null)) {
+            boolean approximate = live && plan.getApproximateLive();
+            if (plan.getFusedMask()) {
+                termMap.createFusedMask(rgb, plan.getTerm(), approximate, colorSpace, termMask, downscale,
+                        plan.getBlur(), plan.getSmoothing(), coverage);
+            } else {
+                termMap.createMask(rgb, plan.getTerm(), approximate, colorSpace, termMask, downscale,
+                        plan.getBlur(), plan.getSmoothing(), coverage);
+            }
+            if (mask != null) {
                 Core.bitwise_and(mask, termMask, mask);
-                termMask.release();
             } else {
                 mask = termMask;
             }
         }
-        switch (filterMode) {
+        switch (plan.getFilterMode()) {
             case NONE:
-                input.copyTo(output);
+                rgb.copyTo(output);
                 break;
             case INCLUDE:
-                input.copyTo(output, mask);
+                output.setTo(Scalar.all(0));
+                rgb.copyTo(output, mask);
                 break;
             case EXCLUDE:
                 if (mask != null) {
                     Core.bitwise_not(mask, mask);
                 }
                 output.setTo(new Scalar(255, 255, 255));
-                input.copyTo(output, mask);
+                rgb.copyTo(output, mask);
                 break;
             case BINARY:
-                Mat ones = Mat.zeros(input.size(), input.type());
-                ones.setTo(new Scalar(255, 255, 255));
-                ones.copyTo(output, mask);
-                ones.release();
+                output.setTo(Scalar.all(0));
+                output.setTo(new Scalar(255, 255, 255), mask);
                 break;
             case SATURATION:
-                List<Mat> channels = new ArrayList<>();
-                Core.split(hsv, channels);
-                channels.set(0, channels.get(1).clone());
-                channels.set(2, channels.get(1).clone());
-                Mat sss = new Mat();
-                Core.merge(channels, sss);
+                Mat saturation = matPool.acquire(rows, cols, CvType.CV_8UC1);
+                Core.extractChannel(hsv, saturation, 1);
+                Mat sss = matPool.acquire(rows, cols, CvType.CV_8UC3);
+                Core.merge(Arrays.asList(saturation, saturation, saturation), sss);
+                output.setTo(Scalar.all(0));
                 sss.copyTo(output, mask);
-                sss.release();
+                matPool.recycle(sss);
+                matPool.recycle(saturation);
                 break;
         }
-        if (mask != null) {
-            mask.release();
+        if (mask != null && mask != termMask) {
+            matPool.recycle(mask);
+        }
+        if (hsv != null) {
+            matPool.recycle(hsv);
+        }
+        matPool.recycle(srgb);
+
+        return output;
+    }
+
+    /**
+     * @param colorSpace The color space of an image or null for sRGB.
+     * @return true if the image has to be converted to sRGB for its hue and saturation.
+     */
+    private static boolean needsSrgbConversion(ColorSpace colorSpace) {
+        return colorSpace != null && colorSpace.getId() != ColorSpace.get(ColorSpace.Named.SRGB).getId();
+    }
+
+    /**
+     * Convert an RGB image to sRGB.  Each tile remembers the most recent conversions, since
+     * photographs repeat many of their colors, and only converts colors it hasn't seen.
+     *
+     * @param rgb        An RGB image.
+     * @param colorSpace The color space of the image.
+     * @return A pooled image that should be recycled.
+     */
+    private DirectMat convertToSrgb(Mat rgb, ColorSpace colorSpace) {
+        int rows = rgb.rows();
+        int cols = rgb.cols();
+        DirectMat rgbCopy = null;
+        ByteBuffer rgbData;
+        if (rgb instanceof DirectMat && ((DirectMat) rgb).isDirect()) {
+            rgbData = ((DirectMat) rgb).getBuffer();
+        } else {
+            rgbCopy = matPool.acquire(rows, cols, CvType.CV_8UC3);
+            rgb.copyTo(rgbCopy);
+            rgbData = rgbCopy.getBuffer();
+        }
+        DirectMat srgb = matPool.acquire(rows, cols, CvType.CV_8UC3);
+        ByteBuffer srgbData = srgb.getBuffer();
+        ColorSpace.Connector connector = ColorSpace.connect(colorSpace, ColorSpace.get(ColorSpace.Named.SRGB));
+        TileProcessor.run(rows * cols, (start, end) -> {
+            byte[] rgbStage = TermLut.getStage()[0];
+            float[] value = new float[3];
+            int[] keys = new int[SRGB_CACHE_SIZE];
+            int[] values = new int[SRGB_CACHE_SIZE];
+            Arrays.fill(keys, -1);
+            ByteBuffer src = rgbData.duplicate();
+            ByteBuffer dst = srgbData.duplicate();
+            src.position(start * 3);
+            dst.position(start * 3);
+            for (int x = start; x < end; x += TermLut.STAGE_PIXELS) {
+                int length = Math.min(TermLut.STAGE_PIXELS, end - x) * 3;
+                src.get(rgbStage, 0, length);
+                for (int i = 0; i < length; i += 3) {
+                    int key = ((rgbStage[i] & 0xFF) << 16) | ((rgbStage[i + 1] & 0xFF) << 8) | (rgbStage[i + 2] & 0xFF);
+                    int slot = (key ^ (key >>> 11)) & (SRGB_CACHE_SIZE - 1);
+                    if (keys[slot] != key) {
+                        value[0] = (key >>> 16) / 255f;
+                        value[1] = ((key >> 8) & 0xFF) / 255f;
+                        value[2] = (key & 0xFF) / 255f;
+                        connector.transform(value);
+                        keys[slot] = key;
+                        values[slot] = (Math.round(Math.max(0, Math.min(1, value[0])) * 255) << 16) |
+                                (Math.round(Math.max(0, Math.min(1, value[1])) * 255) << 8) |
+                                Math.round(Math.max(0, Math.min(1, value[2])) * 255);
+                    }
+                    int converted = values[slot];
+                    rgbStage[i] = (byte) (converted >> 16);
+                    rgbStage[i + 1] = (byte) (converted >> 8);
+                    rgbStage[i + 2] = (byte) converted;
+                }
+                dst.put(rgbStage, 0, length);
+            }
+        });
+        matPool.recycle(rgbCopy);
+        return srgb;
+    }
+
+    /**
+     * Process a camera frame directly from its YUV planes.  Terms are looked up with a table
+     * indexed by YUV values, so classifying the frame doesn't need an RGB image, and binary
+     * output doesn't convert the frame at all.  Only settings that depend on nothing but the
+     * term are handled this way; for anything else, or until the YUV table is built, this
+     * returns null and the frame should be converted and passed to process(Mat, boolean).  The
+     * approximate table isn't used; the YUV table has the same layout as the exact table.  The
+     * result can be passed to recycle once it is no longer needed.
+     *
+     * @param frame The camera frame.
+     * @return An image matrix in RGBA format with the filter applied or null if the frame needs
+     * to be processed as RGB.
+     */
+    public Mat process(YuvFrame frame) {
+        FilterPlan plan = this.plan.get();
+        TermMap termMap = plan.getTermMap();
+        ChangeTracker tracker = changeTracker.get();
+        if (!plan.canUseYuv() || plan.getBlur() < -1 || !termMapReady(termMap, null)) {
+            tracker.invalidate();
+            return null;
+        }
+        if (!termMap.hasYuvMap()) {
+            tracker.invalidate();
+            termMap.prefetchYuv(null);
+            return null;
+        }
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int downscale = plan.getDownscale(width, height);
+        TermCoverage frameCoverage = plan.getCoverageEnabled() ? new TermCoverage() : null;
+        List<Rect> tiles = null;
+        if (plan.getChangeDetection()) {
+            frame.thumbnail(tracker.getThumbnail(width, height, CvType.CV_8UC3));
+            tiles = tracker.update(width, height, LIVE_CHANGE_TOLERANCE,
+                    getChangeSettings(plan, true, true, null, downscale, frameCoverage != null),
+                    frameCoverage == null);
+            if (tiles != null && tiles.isEmpty()) {
+                tracker.setUpdated();
+                return tracker.getOutput();
+            }
+        } else {
+            tracker.invalidate();
+        }
+        if (tiles == null) {
+            DirectMat mask = DirectMat.reuse(termMask.get(), height, width, CvType.CV_8UC1);
+            termMask.set(mask);
+            DirectMat rgba = DirectMat.reuse(rgbaFrame.get(), height, width, CvType.CV_8UC4);
+            rgbaFrame.set(rgba);
+            Mat output = filter(plan, frame, downscale, mask, rgba, frameCoverage);
+            publishCoverage(frameCoverage);
+            if (plan.getChangeDetection()) {
+                tracker.setOutput(output);
+            }
+            return output;
+        }
+        Mat previous = tracker.getOutput();
+        int margin = ChangeTracker.getMargin(TermMap.getReach(plan.getBlur(), plan.getSmoothing(), downscale));
+        for (Rect tile : tiles) {
+            Rect region = ChangeTracker.extend(tile, margin, width, height);
+            Mat regionMask = matPool.acquire(region.height, region.width, CvType.CV_8UC1);
+            Mat regionRgba = matPool.acquire(region.height, region.width, CvType.CV_8UC4);
+            Mat regionOutput = filter(plan, frame.crop(region.x, region.y, region.width, region.height),
+                    downscale, regionMask, regionRgba, null);
+            copyTile(regionOutput, region, tile, previous);
+            matPool.recycle(regionOutput);
+            matPool.recycle(regionRgba);
+            matPool.recycle(regionMask);
+        }
+        tracker.setUpdated();
+        return copyOutput(previous);
+    }
+
+    /**
+     * Filter a camera frame from its YUV planes.
+     *
+     * @param plan      The settings to use.
+     * @param frame     The camera frame.
+     * @param downscale The factor to reduce the frame by before looking up terms.
+     * @param mask      The destination for the term mask.
+     * @param rgba      The destination for the frame in RGBA format, if it is needed.
+     * @param coverage  Either null or counts of the terms that are added to while they are
+     *                  looked up.
+     * @return An image matrix in RGBA format with the filter applied.
+     */
+    private Mat filter(FilterPlan plan, YuvFrame frame, int downscale, Mat mask, Mat rgba, TermCoverage coverage) {
+        int rows = frame.getHeight();
+        int cols = frame.getWidth();
+        TermMap termMap = plan.getTermMap();
+        FilterMode filterMode = plan.getFilterMode();
+        if (filterMode == FilterMode.NONE && coverage == null) {
+            return frame.toRgba(matPool.acquire(rows, cols, CvType.CV_8UC4));
+        }
+        if (plan.getFusedMask()) {
+            termMap.createFusedMask(frame, plan.getTerm(), mask, downscale, plan.getBlur(), coverage);
+        } else {
+            termMap.createMask(frame, plan.getTerm(), mask, downscale, plan.getBlur(), coverage);
+        }
+        if (filterMode == FilterMode.NONE) {
+            return frame.toRgba(matPool.acquire(rows, cols, CvType.CV_8UC4));
+        }
+        Mat output = matPool.acquire(rows, cols, CvType.CV_8UC4);
+        output.setTo(new Scalar(0, 0, 0, 255));
+        if (filterMode == FilterMode.BINARY) {
+            output.setTo(new Scalar(255, 255, 255, 255), mask);
+            return output;
         }
-        hsv.release();
+        frame.toRgba(rgba);
+        if (filterMode == FilterMode.EXCLUDE) {
+            Core.bitwise_not(mask, mask);
+            output.setTo(new Scalar(255, 255, 255, 255));
+        }
+        rgba.copyTo(output, mask);
+        return output;
+    }
+
+    /**
+     * Get everything other than the frame that affects the output, so that unchanged parts of
+     * a frame are only reused if none of these have changed either.
+     *
+     * @param plan       The settings of the frame.
+     * @param yuv        true for frames processed from their YUV planes.
+     * @param live       true if this is a live camera frame.
+     * @param colorSpace The color space of the image.
+     * @param downscale  The factor the frame is reduced by.
+     * @param counted    true if the terms of the frame are counted.
+     * @return The settings.
+     */
+    private static Object[] getChangeSettings(FilterPlan plan, boolean yuv, boolean live, ColorSpace colorSpace,
+                                              int downscale, boolean counted) {
+        TermMap termMap = plan.getTermMap();
+        boolean approximate = live && plan.getApproximateLive() && termMap != null && termMap.hasApproximate();
+        // A plan is never changed, so a different plan means the settings may have changed
+        return new Object[]{yuv, plan, approximate, colorSpace, downscale, counted};
+    }
+
+    /**
+     * Make the coverage of a filtered frame the current coverage, unless counting was turned off
+     * while the frame was being filtered.
+     *
+     * @param frameCoverage Either null or the coverage of the frame.
+     */
+    private void publishCoverage(TermCoverage frameCoverage) {
+        coverage = plan.get().getCoverageEnabled() ? frameCoverage : null;
+    }
 
+    /**
+     * Copy the previous output of the frame, so that the copy can be returned and recycled
+     * while the previous output is kept.
+     *
+     * @param previous The output of the previous frame with the changed tiles updated.
+     * @return A copy from the pool.
+     */
+    private Mat copyOutput(Mat previous) {
+        Mat output = matPool.acquire(previous.rows(), previous.cols(), previous.type());
+        previous.copyTo(output);
         return output;
     }
 
+    /**
+     * Return an image from process once it is no longer needed, so that its memory is reused
+     * by later frames.  The image must not be used afterward.  The kept output that is returned
+     * for an unchanged frame is left alone.
+     *
+     * @param output An image returned by process or null.
+     */
+    public void recycle(Mat output) {
+        if (output != null && keptOutputs.contains(output)) {
+            return;
+        }
+        matPool.recycle(output);
+    }
+
+    /**
+     * Release the images kept for reuse.  Call this when frames stop, such as when the camera
+     * closes, or when the frame size changes, since images of the old size won't be used again.
+     */
+    public void releaseBuffers() {
+        matPool.clear();
+    }
+
+    /**
+     * Copy the part of a filtered region that belongs to a tile into the output.
+     *
+     * @param regionOutput The filtered region.
+     * @param region       The region within the frame.
+     * @param tile         The tile within the frame.  This is inside the region.
+     * @param output       The output for the whole frame.
+     */
+    private static void copyTile(Mat regionOutput, Rect region, Rect tile, Mat output) {
+        Mat source = regionOutput.submat(new Rect(tile.x - region.x, tile.y - region.y, tile.width, tile.height));
+        Mat dest = output.submat(tile);
+        source.copyTo(dest);
+        source.release();
+        dest.release();
+    }
+
+    /**
+     * Check if the output of the most recent frame processed on this thread is the same as that
+     * of the frame before it, in which case whatever was made from the previous output, such as
+     * a bitmap, can be reused.
+     *
+     * @return true if the output is unchanged.
+     */
+    public boolean isFrameUnchanged() {
+        return changeTracker.get().isUnchanged();
+    }
+
+    /**
+     * Only filter the parts of each frame that differ from the previous frame.  Frames are
+     * compared by averages over small blocks of pixels, allowing for some noise in live frames,
+     * so a small change in a live frame may be missed.  This is off by default.
+     *
+     * @param changeDetection true to reuse the unchanged parts of the previous frame.
+     */
+    public void setChangeDetection(boolean changeDetection) {
+        update(builder -> builder.setChangeDetection(changeDetection));
+    }
+
+    public boolean getChangeDetection() {
+        return plan.get().getChangeDetection();
+    }
+
+    /**
+     * Create term masks in a single pass without an image of the terms.  The masks are the same
+     * either way.  When the blur is positive, the terms are looked up a band of rows at a time to
+     * find the most common term around each pixel.
+     *
+     * @param fusedMask true to use single pass masks.
+     */
+    public void setFusedMask(boolean fusedMask) {
+        update(builder -> builder.setFusedMask(fusedMask));
+    }
+
+    public boolean getFusedMask() {
+        return plan.get().getFusedMask();
+    }
+
+    /**
+     * Count how much of each frame is each term.  The terms are counted while they are looked
+     * up for the mask, so this doesn't take another pass over the frame, but every pixel is
+     * looked up rather than only those that might be the current term, and whole frames are
+     * filtered again rather than only the parts that changed.
+     *
+     * @param coverageEnabled true to count the terms.
+     */
+    public void setCoverageEnabled(boolean coverageEnabled) {
+        update(builder -> builder.setCoverageEnabled(coverageEnabled));
+        if (!coverageEnabled) {
+            coverage = null;
+        }
+    }
+
+    public boolean getCoverageEnabled() {
+        return plan.get().getCoverageEnabled();
+    }
+
+    /**
+     * Get the term coverage of the most recently filtered frame.  If a frame is unchanged from
+     * the one before it, the coverage of that frame is kept.
+     *
+     * @return The coverage or null if it isn't enabled or no frame has been filtered with a
+     * TermMap.
+     */
+    public TermCoverage getCoverage() {
+        return coverage;
+    }
+
     public boolean sampleRegion(Mat input) {
+        return sampleRegion(input, null);
+    }
+
+    /**
+     * Find the most common term or hue in a circular region and make it the current one.
+     *
+     * @param input      An image matrix in RGBA format.  Modified.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @return true if the term or hue changed.
+     */
+    public boolean sampleRegion(Mat input, ColorSpace colorSpace) {
         int width = input.cols();
         int height = input.rows();
         if (width < 1 || height < 1) {
@@ -281,32 +994,41 @@ public class FilterProcessor {
         int rad2 = rad * rad;
         int cx = width / 2;
         int cy = height / 2;
+        FilterPlan plan = this.plan.get();
+        TermMap termMap = plan.getTermMap();
+        if (!termMapReady(termMap, colorSpace)) {
+            return false;
+        }
         if (termMap != null) {
             Imgproc.cvtColor(input, input, Imgproc.COLOR_RGBA2RGB);
-            Mat terms = termMap.createMap(input);
-            Map<Byte, Integer> termCounts = new HashMap<>();
+            Mat terms = termMap.createMap(input, colorSpace, sampleTerms.get(), plan.getBlur(), plan.getSmoothing(), null);
+            byte[] termData = sampleData.get();
+            if (termData == null || termData.length != width * height) {
+                termData = new byte[width * height];
+                sampleData.set(termData);
+            }
+            terms.get(0, 0, termData);
+            int[] termCounts = new int[256];
             for (int j = 0; j < height; j++) {
                 for (int i = 0; i < width; i++) {
                     if ((j - cy) * (j - cy) + (i - cx) * (i - cx) > rad2) {
                         continue;
                     }
-                    byte val = (byte) terms.get(j, i)[0];
-                    //noinspection DataFlowIssue
-                    termCounts.put(val, termCounts.getOrDefault(val, 0) + 1);
+                    termCounts[termData[j * width + i] & 0xFF]++;
                 }
             }
-            terms.release();
             int modalTerm = -1;
             int maxCount = 0;
-            for (Map.Entry<Byte, Integer> entry : termCounts.entrySet()) {
-                if (entry.getValue() > maxCount) {
-                    maxCount = entry.getValue();
-                    modalTerm = entry.getKey();
+            for (int val = 0; val < termCounts.length; val++) {
+                if (termCounts[val] > maxCount) {
+                    maxCount = termCounts[val];
+                    modalTerm = val;
                 }
             }
             Log.d(TAG, "Modal term " + modalTerm);
-            if (modalTerm != term) {
-                term = modalTerm;
+            if (modalTerm != plan.getTerm()) {
+                int sampledTerm = modalTerm;
+                update(builder -> builder.setTerm(sampledTerm));
                 return true;
             }
         } else {
@@ -330,8 +1052,9 @@ public class FilterProcessor {
                 commonHue += 360;
             }
             Log.d(TAG, "Common hue " + commonHue);
-            if (commonHue != hue) {
-                hue = commonHue;
+            if (commonHue != plan.getHue()) {
+                int sampledHue = commonHue;
+                update(builder -> builder.setHue(sampledHue));
                 return true;
             }
         }
@@ -0,0 +1,129 @@
+package com.orbitals.colorfilter;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * One bit per RGB triple marking which triples are within the hue, saturation, and luminance
+ * thresholds of a FilterPlan.  With this, thresholding a frame is one lookup per pixel instead
+ * of converting the frame to HSV and comparing it to one or two ranges.  The bits are computed
+ * by converting every RGB triple with OpenCV, so they match the HSV path exactly.  Like
+ * TermBitset, this is 2 MB stored outside of the Java heap.
+ */
+public class HsvRangeBitset {
+    private final FilterPlan plan;
+    private final LongBuffer bits;
+
+    private HsvRangeBitset(FilterPlan plan, LongBuffer bits) {
+        this.plan = plan;
+        this.bits = bits;
+    }
+
+    /**
+     * Build the bitset for the thresholds of a plan.  Each red plane of the RGB cube is converted
+     * and thresholded as a 256 x 256 image.
+     *
+     * @param plan The plan.
+     * @return The bitset.
+     */
+    static HsvRangeBitset build(FilterPlan plan) {
+        LongBuffer bits = TermLut.allocate(TermLut.ENTRIES / 8).asLongBuffer();
+        Mat rgb = new Mat(256, 256, CvType.CV_8UC3);
+        Mat hsv = new Mat();
+        Mat mask = new Mat();
+        Mat mask2 = new Mat();
+        byte[] rgbData = new byte[256 * 256 * 3];
+        byte[] maskData = new byte[256 * 256];
+        for (int i = 0, index = 0; i < rgbData.length; i += 3, index++) {
+            rgbData[i + 1] = (byte) (index >> 8);
+            rgbData[i + 2] = (byte) index;
+        }
+        for (int r = 0; r < 256; r++) {
+            for (int i = 0; i < rgbData.length; i += 3) {
+                rgbData[i] = (byte) r;
+            }
+            rgb.put(0, 0, rgbData);
+            Imgproc.cvtColor(rgb, hsv, Imgproc.COLOR_RGB2HSV);
+            Core.inRange(hsv, plan.getLowerBound(), plan.getUpperBound(), mask);
+            if (plan.getWrapLowerBound() != null) {
+                Core.inRange(hsv, plan.getWrapLowerBound(), plan.getWrapUpperBound(), mask2);
+                Core.bitwise_or(mask, mask2, mask);
+            }
+            mask.get(0, 0, maskData);
+            for (int index = 0; index < maskData.length; index += 64) {
+                long word = 0;
+                for (int bit = 0; bit < 64; bit++) {
+                    if (maskData[index + bit] != 0) {
+                        word |= 1L << bit;
+                    }
+                }
+                bits.put((r << 10) | (index >> 6), word);
+            }
+        }
+        rgb.release();
+        hsv.release();
+        mask.release();
+        mask2.release();
+        return new HsvRangeBitset(plan, bits);
+    }
+
+    /**
+     * Check if the bitset can be used for a plan.
+     *
+     * @param plan The plan.
+     * @return true if the plan has the same thresholds as the one the bitset was built for.
+     */
+    public boolean matches(FilterPlan plan) {
+        return this.plan.hasSameRange(plan);
+    }
+
+    /**
+     * Check if an RGB triple is within the thresholds.
+     *
+     * @param index (r << 16) | (g << 8) | b.
+     * @return true if the triple is within the thresholds.
+     */
+    public boolean contains(int index) {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Set each pixel of a mask to 255 if it is within the thresholds and 0 otherwise.
+     *
+     * @param rgbData  Interleaved 8-bit RGB data.
+     * @param pixels   The number of pixels.
+     * @param maskData The destination with one byte per pixel.
+     */
+    void fillMask(ByteBuffer rgbData, int pixels, ByteBuffer maskData) {
+        TileProcessor.run(pixels, (start, end) -> {
+            byte[][] stage = TermLut.getStage();
+            byte[] rgbStage = stage[0];
+            byte[] maskStage = stage[1];
+            ByteBuffer src = rgbData.duplicate();
+            ByteBuffer dst = maskData.duplicate();
+            src.position(start * 3);
+            dst.position(start);
+            for (int x = start; x < end; x += TermLut.STAGE_PIXELS) {
+                int length = Math.min(TermLut.STAGE_PIXELS, end - x);
+                src.get(rgbStage, 0, length * 3);
+                for (int j = 0, i = 0; j < length; j++, i += 3) {
+                    int index = ((rgbStage[i] & 0xFF) << 16) | ((rgbStage[i + 1] & 0xFF) << 8) | (rgbStage[i + 2] & 0xFF);
+                    maskStage[j] = contains(index) ? (byte) 255 : 0;
+                }
+                dst.put(maskStage, 0, length);
+            }
+        });
+    }
+
+    /**
+     * @return The number of bytes of storage used by the bitset.
+     */
+    public long getByteSize() {
+        return bits.capacity() * 8L;
+    }
+}
@@ -9,6 +9,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorSpace;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.net.Uri;
@@ -55,8 +56,10 @@ public class ImageController {
                 Uri imageUri = data.getData();
                 try {
                     InputStream inputStream = context.getContentResolver().openInputStream(imageUri);
+                    // Decode in the image's own color space; the term map classifies it with a
+                    // table for that color space rather than converting every pixel
                     BitmapFactory.Options options = new BitmapFactory.Options();
-                    options.inPreferredColorSpace = Utilities.checkColorSpace(context);
+                    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
                     loadedImage = BitmapFactory.decodeStream(inputStream, null, options);
                     int orientation = getOrientation(imageUri);
                     if (orientation != 0) {
@@ -159,27 +162,30 @@ public class ImageController {
                 inputMat = new Mat();
                 Utils.bitmapToMat(loadedImage, inputMat);
                 Mat centerChunk = Utilities.centerOfImage(context, textureView, filter, inputMat, imageMatrix);
-                if (filter.sampleRegion(centerChunk) && updateCallback != null) {
+                if (filter.sampleRegion(centerChunk, loadedImage.getColorSpace()) && updateCallback != null) {
                     ((Activity) context).runOnUiThread(updateCallback::onFilterUpdated);
                     reuse = false;
                 }
                 centerChunk.release();
             }
             if ((processedImage == null || !reuse)) {
-                if (processedImage != null) {
-                    processedImage.recycle();
-                    processedImage = null;
-                }
                 if (inputMat == null) {
                     inputMat = new Mat();
                     Utils.bitmapToMat(loadedImage, inputMat);
                 }
-                Mat processedMat = filter.process(inputMat);
+                ColorSpace colorSpace = loadedImage.getColorSpace();
+                Mat processedMat = filter.process(inputMat, false, colorSpace);
                 inputMat.release();
                 inputMat = null;
-                processedImage = Bitmap.createBitmap(processedMat.cols(), processedMat.rows(), Bitmap.Config.ARGB_8888);
-                Utils.matToBitmap(processedMat, processedImage);
-                processedMat.release();
+                // The same image with the same settings gives the same bitmap
+                if (processedImage == null || !filter.isFrameUnchanged()) {
+                    if (processedImage != null) {
+                        processedImage.recycle();
+                    }
+                    processedImage = createBitmap(processedMat.cols(), processedMat.rows(), colorSpace);
+                    Utils.matToBitmap(processedMat, processedImage);
+                }
+                filter.recycle(processedMat);
             }
             if (inputMat != null) {
                 inputMat.release();
@@ -191,10 +197,31 @@ public class ImageController {
             canvas.drawColor(Color.BLACK);
             canvas.drawBitmap(processedImage, imageMatrix, null);
             Utilities.drawSamplingCircle(context, filter, canvas);
+            Utilities.drawTermCoverage(context, filter, canvas);
             textureView.unlockCanvasAndPost(canvas);
         }
     }
 
+    /**
+     * Create a bitmap in the same color space as the loaded image so that the display converts
+     * it as needed.
+     *
+     * @param width      The width of the bitmap.
+     * @param height     The height of the bitmap.
+     * @param colorSpace The color space or null for sRGB.
+     * @return A new ARGB_8888 bitmap.
+     */
+    private static Bitmap createBitmap(int width, int height, ColorSpace colorSpace) {
+        if (colorSpace != null) {
+            try {
+                return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888, true, colorSpace);
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, "Can't create a bitmap in " + colorSpace.getName() + ": " + e.getMessage());
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
     private void constrainImage() {
         RectF rect = new RectF(0, 0, loadedImage.getWidth(), loadedImage.getHeight());
         imageMatrix.mapRect(rect);
@@ -231,6 +258,7 @@ public class ImageController {
     public void clearImage() {
         loadedImage = null;
         processedImage = null;
+        filter.releaseBuffers();
     }
 
     public void onConfigurationChanged() {
@@ -72,13 +72,19 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHueMaps();
-        termMaps = TermMap.loadTermMaps(getResources(), Utilities.checkColorSpace(this));
+        termMaps = TermMap.loadTermMaps(getResources(), Utilities.checkColorSpace(this), getCacheDir());
         setContentView(R.layout.activity_main);
         textureView = findViewById(R.id.textureView);
         textureView.setSurfaceTextureListener(this);
         uiManager = new UIComponentManager(this);
 
         filter = new FilterProcessor();
+        // Redraw a static image once the selected term map is available
+        filter.setTermMapLoadedListener(() -> runOnUiThread(() -> {
+            if (isImageMode) {
+                imageController.displayLoadedImage();
+            }
+        }));
         // defaults
         filter.setFilterSettings(0, 14, 100, 100, 1, FilterProcessor.FilterMode.EXCLUDE, termMaps.get(0));
         filter.setUseLumSatBCT(false);
@@ -495,5 +501,9 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
             filter.setSampleMode(prefs.getBoolean(SettingsActivity.KEY_SAMPLE_MODE, filter.getSampleMode()));
         }
         filter.setUseLumSatBCT(prefs.getBoolean(SettingsActivity.KEY_SHOW_BCT_CONTROLS, filter.getUseLumSatBCT()));
+        filter.setApproximateLive(prefs.getBoolean(SettingsActivity.KEY_APPROXIMATE_LIVE, filter.getApproximateLive()));
+        filter.setReducedResolution(prefs.getBoolean(SettingsActivity.KEY_REDUCED_RESOLUTION, filter.getReducedResolution()));
+        filter.setCoverageEnabled(prefs.getBoolean(SettingsActivity.KEY_SHOW_COVERAGE, filter.getCoverageEnabled()));
+        filter.setChangeDetection(prefs.getBoolean(SettingsActivity.KEY_CHANGE_DETECTION, filter.getChangeDetection()));
     }
 }
\ No newline at end of file
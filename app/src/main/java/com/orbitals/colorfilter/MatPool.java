@@ -0,0 +1,102 @@
+package com.orbitals.colorfilter;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of OpenCV images keyed by size and type, so that the working images of each frame
+ * reuse the memory of earlier frames instead of allocating it again.  Images are taken with
+ * acquire and given back with recycle once nothing refers to them.  The images are DirectMats,
+ * so Java code can also work on their pixels in place.  This is safe to use from several
+ * threads.
+ */
+public class MatPool {
+    /**
+     * The most images of any one size and type that are kept.  More than this are released.
+     */
+    private static final int MAX_PER_KEY = 4;
+
+    private final Map<Long, ArrayDeque<DirectMat>> pool = new HashMap<>();
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+
+    /**
+     * Get an image of a specific size and type.  The pixels are not initialized.
+     *
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param type An 8-bit OpenCV type, such as CvType.CV_8UC3.
+     * @return An image from the pool or a new image.
+     */
+    public DirectMat acquire(int rows, int cols, int type) {
+        synchronized (pool) {
+            ArrayDeque<DirectMat> mats = pool.get(key(rows, cols, type));
+            if (mats != null && !mats.isEmpty()) {
+                return mats.pop();
+            }
+        }
+        return new DirectMat(rows, cols, type);
+    }
+
+    /**
+     * Return an image to the pool.  The caller must not use it afterward.
+     *
+     * @param mat Either null or an image, usually from acquire.  Images that didn't come from
+     *            acquire or no longer use their own buffer are released rather than kept.
+     */
+    public void recycle(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        if (!(mat instanceof DirectMat) || !((DirectMat) mat).isDirect()) {
+            mat.release();
+            return;
+        }
+        DirectMat direct = (DirectMat) mat;
+        synchronized (pool) {
+            long key = key(direct.rows(), direct.cols(), direct.type());
+            ArrayDeque<DirectMat> mats = pool.get(key);
+            if (mats == null) {
+                mats = new ArrayDeque<>();
+                pool.put(key, mats);
+            }
+            if (mats.size() < MAX_PER_KEY) {
+                mats.push(direct);
+                return;
+            }
+        }
+        mat.release();
+    }
+
+    /**
+     * Release every pooled image, such as when the camera closes or the frame size changes.
+     */
+    public void clear() {
+        synchronized (pool) {
+            for (ArrayDeque<DirectMat> mats : pool.values()) {
+                for (DirectMat mat : mats) {
+                    mat.release();
+                }
+            }
+            pool.clear();
+        }
+    }
+
+    /**
+     * @return The number of images in the pool.
+     */
+    public int size() {
+        synchronized (pool) {
+            int size = 0;
+            for (ArrayDeque<DirectMat> mats : pool.values()) {
+                size += mats.size();
+            }
+            return size;
+        }
+    }
+}
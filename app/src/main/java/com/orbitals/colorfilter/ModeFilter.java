@@ -0,0 +1,267 @@
+package com.orbitals.colorfilter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A majority (mode) filter for images of labels, such as term maps.  Each pixel becomes the
+ * most common label in the square window around it, with pixels past the edges repeating the
+ * edge pixels.  Ties go to the smallest label.  Labels that are out of range, such as a value
+ * marking unknown pixels, are counted together as one more label, which is written as the number
+ * of labels.
+ * <p>
+ * Each column keeps a histogram of the labels in the rows of the window, which is updated by one
+ * removal and one addition as the window moves down.  Along a row, the window's histogram is the
+ * sum of the column histograms, updated by subtracting the column that leaves and adding the
+ * column that enters, so the cost per pixel depends on the number of labels rather than the
+ * window size.  Where every column of the window has a single label and they all agree, which
+ * is most of a typical image, the label is used without touching the histograms.
+ * <p>
+ * The image is filtered in bands of rows.  Each band keeps only the rows of its window, so the
+ * labels can also be made a row at a time by a {@link RowSource}, without an image of them.
+ */
+public class ModeFilter {
+    /**
+     * The smallest number of window heights in a band.  The rows of the window above and below
+     * a band are read by both it and its neighbours, so bands are kept tall enough that this is
+     * a small part of the work.
+     */
+    private static final int MIN_BAND_WINDOWS = 8;
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Makes the labels of an image one row at a time.  Rows are read by several threads at once.
+     */
+    public interface RowSource {
+        /**
+         * @param row  The row to read.
+         * @param dest The destination for the labels of the row, one byte per pixel.
+         */
+        void read(int row, byte[] dest);
+    }
+
+    /**
+     * Filter a label image.
+     *
+     * @param src    The labels, one byte per pixel.
+     * @param dest   The destination of the same size.  This must not be the source.
+     * @param ksize  The width of the window.  Even sizes use the next larger odd size.
+     * @param labels The number of distinct labels.  Labels that aren't less than this are
+     *               counted as the label equal to it.
+     * @param term   If not negative, write 255 where the mode is this label and 0 elsewhere
+     *               instead of the mode itself.
+     */
+    public static void apply(DirectMat src, DirectMat dest, int ksize, int labels, int term) {
+        int width = src.cols();
+        ByteBuffer in = src.getBuffer();
+        apply((row, rowLabels) -> {
+            ByteBuffer buffer = in.duplicate();
+            buffer.position(row * width);
+            buffer.get(rowLabels, 0, width);
+        }, width, src.rows(), dest, ksize, labels, term, null);
+    }
+
+    /**
+     * Filter labels that are made a row at a time.  Each row is read once by each band whose
+     * window includes it, so the rows of a band are read once.
+     *
+     * @param source   The labels.
+     * @param width    The width of the image.
+     * @param height   The height of the image.
+     * @param dest     The destination.
+     * @param ksize    The width of the window.  Even sizes use the next larger odd size.
+     * @param labels   The number of distinct labels.  Labels that aren't less than this are
+     *                 counted as the label equal to it.
+     * @param term     If not negative, write 255 where the mode is this label and 0 elsewhere
+     *                 instead of the mode itself.
+     * @param coverage Either null or counts of the labels that are added to as the rows are
+     *                 read.
+     */
+    public static void apply(RowSource source, int width, int height, DirectMat dest, int ksize, int labels,
+                             int term, TermCoverage coverage) {
+        int radius = ksize / 2;
+        int size = radius * 2 + 1;
+        ByteBuffer out = dest.getBuffer();
+        int tileSize = TileProcessor.getTileSize();
+        int bandRows = Math.max(MIN_BAND_WINDOWS * size, (tileSize + width - 1) / width);
+        // Each row is given enough units that a tile holds a band
+        int rowUnit = Math.max(1, Math.min(tileSize / bandRows, Integer.MAX_VALUE / Math.max(1, height)));
+        TermCoverage.Parts parts = coverage != null ? coverage.newParts() : null;
+        // Each tile filters the rows that start within it
+        TileProcessor.run(height * rowUnit, (start, end) -> {
+            int firstRow = (start + rowUnit - 1) / rowUnit;
+            int lastRow = Math.min(height, (end + rowUnit - 1) / rowUnit);
+            if (firstRow < lastRow) {
+                filterRows(source, out, width, height, radius, labels, term, firstRow, lastRow,
+                        parts != null ? parts.newPart() : null);
+            }
+        });
+        if (parts != null) {
+            parts.merge();
+        }
+    }
+
+    private static void filterRows(RowSource source, ByteBuffer out, int width, int height, int radius,
+                                   int labels, int term, int firstRow, int lastRow, int[] counts) {
+        int size = radius * 2 + 1;
+        Scratch buffers = scratch.get();
+        int[] bins = buffers.getBins(labels);
+        // One more bin for the labels that are out of range
+        int count = labels + 1;
+        buffers.ensure(width, count, size);
+        int[] columns = buffers.columns;
+        int[] window = buffers.window;
+        byte[][] rows = buffers.rows;
+        int[] uniform = buffers.uniform;
+        int[] same = buffers.same;
+        byte[] result = buffers.result;
+        ByteBuffer dst = out.duplicate();
+
+        // The rows of the window are kept in a ring, where row r of the image is in slot
+        // (r - firstRow + radius) % size.  After this, added holds the bottom row of the first
+        // window.
+        byte[] added = null;
+        Arrays.fill(columns, 0, width * count, 0);
+        for (int dy = -radius; dy <= radius; dy++) {
+            byte[] previous = added;
+            added = rows[dy + radius];
+            readRow(source, firstRow + dy, height, width, previous, added, firstRow, lastRow, counts);
+            for (int x = 0, c = 0; x < width; x++, c += count) {
+                columns[c + bins[added[x] & 0xFF]]++;
+            }
+        }
+        for (int y = firstRow; y < lastRow; y++) {
+            if (y > firstRow) {
+                // The row that leaves the window is replaced by the row that enters it
+                int slot = (y - 1 - firstRow) % size;
+                byte[] previous = added;
+                added = rows[slot];
+                for (int x = 0, c = 0; x < width; x++, c += count) {
+                    columns[c + bins[added[x] & 0xFF]]--;
+                }
+                readRow(source, y + radius, height, width, previous, added, firstRow, lastRow, counts);
+                for (int x = 0, c = 0; x < width; x++, c += count) {
+                    columns[c + bins[added[x] & 0xFF]]++;
+                }
+            }
+            // A column is uniform if its whole window is the label of its bottom row
+            for (int x = 0, c = 0; x < width; x++, c += count) {
+                int label = bins[added[x] & 0xFF];
+                uniform[x] = columns[c + label] == size ? label : -1;
+                same[x] = uniform[x] < 0 ? 0 : (x > 0 && uniform[x - 1] == label ? same[x - 1] + 1 : 1);
+            }
+            boolean valid = false;
+            for (int x = 0; x < width; x++) {
+                int right = Math.min(width - 1, x + radius);
+                int left = Math.max(0, x - radius);
+                if (same[right] >= right - left + 1) {
+                    result[x] = (byte) uniform[right];
+                    valid = false;
+                    continue;
+                }
+                if (!valid) {
+                    Arrays.fill(window, 0, count, 0);
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        addColumn(window, columns, clamp(x + dx, width) * count, count, 1);
+                    }
+                    valid = true;
+                } else {
+                    addColumn(window, columns, clamp(x - 1 - radius, width) * count, count, -1);
+                    addColumn(window, columns, right * count, count, 1);
+                }
+                int mode = 0;
+                for (int label = 1; label < count; label++) {
+                    if (window[label] > window[mode]) {
+                        mode = label;
+                    }
+                }
+                result[x] = (byte) mode;
+            }
+            if (term >= 0) {
+                for (int x = 0; x < width; x++) {
+                    result[x] = (result[x] & 0xFF) == term ? (byte) 255 : 0;
+                }
+            }
+            dst.position(y * width);
+            dst.put(result, 0, width);
+        }
+    }
+
+    private static void addColumn(int[] window, int[] columns, int offset, int labels, int sign) {
+        for (int label = 0; label < labels; label++) {
+            window[label] += sign * columns[offset + label];
+        }
+    }
+
+    /**
+     * Read a row of the window.  Rows past the edges repeat the edge row, which is copied from
+     * the row above or below rather than read again.
+     */
+    private static void readRow(RowSource source, int row, int height, int width, byte[] previous, byte[] dest,
+                                int firstRow, int lastRow, int[] counts) {
+        if (previous != null && (row <= 0 || row >= height)) {
+            System.arraycopy(previous, 0, dest, 0, width);
+        } else {
+            source.read(clamp(row, height), dest);
+        }
+        if (counts != null && row >= firstRow && row < lastRow) {
+            TermLut.count(dest, width, counts);
+        }
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+
+    /**
+     * Per-thread working arrays, reallocated when the image width, number of labels or window
+     * height grows.
+     */
+    private static class Scratch {
+        int[] columns = new int[0];
+        int[] window = new int[0];
+        byte[][] rows = new byte[0][];
+        int[] uniform = new int[0];
+        int[] same = new int[0];
+        byte[] result = new byte[0];
+        int[] bins = new int[256];
+        int binLabels = -1;
+
+        /**
+         * Get the bin of each byte value, with every value from the number of labels up sharing
+         * the last bin.
+         */
+        int[] getBins(int labels) {
+            if (binLabels != labels) {
+                for (int value = 0; value < bins.length; value++) {
+                    bins[value] = Math.min(value, labels);
+                }
+                binLabels = labels;
+            }
+            return bins;
+        }
+
+        void ensure(int width, int labels, int size) {
+            if (columns.length < width * labels) {
+                columns = new int[width * labels];
+            }
+            if (window.length < labels) {
+                window = new int[labels];
+            }
+            if (result.length < width) {
+                rows = new byte[0][];
+                uniform = new int[width];
+                same = new int[width];
+                result = new byte[width];
+            }
+            if (rows.length < size) {
+                byte[][] grown = Arrays.copyOf(rows, size);
+                for (int i = rows.length; i < size; i++) {
+                    grown[i] = new byte[result.length];
+                }
+                rows = grown;
+            }
+        }
+    }
+}
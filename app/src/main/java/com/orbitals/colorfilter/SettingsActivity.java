@@ -31,12 +31,20 @@ public class SettingsActivity extends AppCompatActivity {
     public static final String KEY_SAMPLE_MODE = "sample_mode";
     public static final String KEY_SHOW_BCT_CONTROLS = "show_bct_controls";
     public static final String KEY_DEFAULT_SHOW_BCT_CONTROLS = "default_show_bct_controls";
+    public static final String KEY_APPROXIMATE_LIVE = "approximate_live";
+    public static final String KEY_REDUCED_RESOLUTION = "reduced_resolution";
+    public static final String KEY_SHOW_COVERAGE = "show_coverage";
+    public static final String KEY_CHANGE_DETECTION = "change_detection";
     /**
      * @noinspection SpellCheckingInspection
      */
     private static final String TAG = "com.orbitals.colorfilter.SettingsActivity";
     private Button setDefaultsButton;
     private boolean showBctControls = false;
+    private boolean approximateLive = false;
+    private boolean reducedResolution = false;
+    private boolean showCoverage = false;
+    private boolean changeDetection = false;
 
     private int currentFilterMode;
     private int currentHue;
@@ -92,6 +100,38 @@ public class SettingsActivity extends AppCompatActivity {
             updateSetDefaultsButton();
         });
 
+        SwitchCompat approximateLiveSwitch = findViewById(R.id.approximateLiveSwitch);
+        approximateLiveSwitch.setChecked(approximateLive);
+        approximateLiveSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            approximateLive = isChecked;
+            saveSettings();
+            settingsChanged = true;
+        });
+
+        SwitchCompat reducedResolutionSwitch = findViewById(R.id.reducedResolutionSwitch);
+        reducedResolutionSwitch.setChecked(reducedResolution);
+        reducedResolutionSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            reducedResolution = isChecked;
+            saveSettings();
+            settingsChanged = true;
+        });
+
+        SwitchCompat showCoverageSwitch = findViewById(R.id.showCoverageSwitch);
+        showCoverageSwitch.setChecked(showCoverage);
+        showCoverageSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            showCoverage = isChecked;
+            saveSettings();
+            settingsChanged = true;
+        });
+
+        SwitchCompat changeDetectionSwitch = findViewById(R.id.changeDetectionSwitch);
+        changeDetectionSwitch.setChecked(changeDetection);
+        changeDetectionSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            changeDetection = isChecked;
+            saveSettings();
+            settingsChanged = true;
+        });
+
         setDefaultsButton = findViewById(R.id.setDefaultsButton);
         updateSetDefaultsButton();
         setDefaultsButton.setOnClickListener(v -> {
@@ -140,6 +180,10 @@ public class SettingsActivity extends AppCompatActivity {
     private void loadSettings() {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         showBctControls = prefs.getBoolean(KEY_SHOW_BCT_CONTROLS, false);
+        approximateLive = prefs.getBoolean(KEY_APPROXIMATE_LIVE, false);
+        reducedResolution = prefs.getBoolean(KEY_REDUCED_RESOLUTION, false);
+        showCoverage = prefs.getBoolean(KEY_SHOW_COVERAGE, false);
+        changeDetection = prefs.getBoolean(KEY_CHANGE_DETECTION, false);
     }
 
     private void loadDefaultSettings() {
@@ -169,6 +213,10 @@ public class SettingsActivity extends AppCompatActivity {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = prefs.edit();
         editor.putBoolean(KEY_SHOW_BCT_CONTROLS, showBctControls);
+        editor.putBoolean(KEY_APPROXIMATE_LIVE, approximateLive);
+        editor.putBoolean(KEY_REDUCED_RESOLUTION, reducedResolution);
+        editor.putBoolean(KEY_SHOW_COVERAGE, showCoverage);
+        editor.putBoolean(KEY_CHANGE_DETECTION, changeDetection);
         editor.apply();
     }
 
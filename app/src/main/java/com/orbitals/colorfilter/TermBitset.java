@@ -0,0 +1,76 @@
+package com.orbitals.colorfilter;
+
+import java.nio.LongBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * One bit per RGB triple marking which triples map to a single term.  At 2 MB this is an
+ * eighth of a byte-per-entry table, so masking with a single term stays in cache far better
+ * than looking up the full table.  The bits are stored outside of the Java heap.
+ */
+public class TermBitset {
+    private final int term;
+    private final LongBuffer bits;
+
+    private TermBitset(int term, LongBuffer bits) {
+        this.term = term;
+        this.bits = bits;
+    }
+
+    /**
+     * Build the bitset for a term.  Only the term's bounding box is scanned; red planes are
+     * scanned in parallel.
+     *
+     * @param map   The table.
+     * @param stats The statistics of the term.
+     * @return The bitset.
+     */
+    static TermBitset build(TermLut map, TermStats stats) {
+        int term = stats.getTerm();
+        LongBuffer bits = TermLut.allocate(TermLut.ENTRIES / 8).asLongBuffer();
+        if (!stats.isEmpty()) {
+            IntStream.rangeClosed(stats.getMinRed(), stats.getMaxRed()).parallel().forEach(r -> {
+                // Each green row of 256 blue values is 4 words
+                long[] row = new long[4];
+                for (int g = stats.getMinGreen(); g <= stats.getMaxGreen(); g++) {
+                    int base = (r << 16) | (g << 8);
+                    boolean any = false;
+                    for (int b = stats.getMinBlue(); b <= stats.getMaxBlue(); b++) {
+                        if (map.get(base | b) == term) {
+                            row[b >> 6] |= 1L << b;
+                            any = true;
+                        }
+                    }
+                    if (any) {
+                        for (int w = 0; w < row.length; w++) {
+                            bits.put((base >> 6) + w, row[w]);
+                            row[w] = 0;
+                        }
+                    }
+                }
+            });
+        }
+        return new TermBitset(term, bits);
+    }
+
+    /**
+     * Check if an RGB triple maps to the term.
+     *
+     * @param index (r << 16) | (g << 8) | b.
+     * @return true if the triple maps to the term.
+     */
+    public boolean contains(int index) {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    /**
+     * @return The number of bytes of storage used by the bitset.
+     */
+    public long getByteSize() {
+        return bits.capacity() * 8L;
+    }
+}
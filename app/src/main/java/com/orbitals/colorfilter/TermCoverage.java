@@ -0,0 +1,110 @@
+package com.orbitals.colorfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The number of pixels of an image that are each color term.  Counts are added while the terms
+ * are looked up: each tile counts into its own array, and the arrays are merged into this once
+ * every tile is done, so counting doesn't need another pass over the image.
+ */
+public class TermCoverage {
+    private final long[] counts = new long[256];
+    private long total;
+
+    /**
+     * Add the counts of part of an image.
+     *
+     * @param partCounts An array of 256 counts indexed by term value.
+     */
+    synchronized void add(int[] partCounts) {
+        for (int term = 0; term < counts.length; term++) {
+            counts[term] += partCounts[term];
+            total += partCounts[term];
+        }
+    }
+
+    /**
+     * @return A place for the tiles of one lookup to count into.
+     */
+    Parts newParts() {
+        return new Parts(this);
+    }
+
+    /**
+     * @param term The term value.
+     * @return The number of pixels that are the term.
+     */
+    public synchronized long getCount(int term) {
+        return term >= 0 && term < counts.length ? counts[term] : 0;
+    }
+
+    /**
+     * @return The number of pixels counted.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param term The term value.
+     * @return The fraction of the pixels that are the term, from 0 to 1.
+     */
+    public synchronized double getFraction(int term) {
+        return total > 0 ? (double) getCount(term) / total : 0;
+    }
+
+    /**
+     * Get the terms that cover at least some fraction of the image, most common first.
+     *
+     * @param minFraction The smallest fraction of the pixels to include a term.
+     * @return The term values.
+     */
+    public synchronized List<Integer> getTerms(double minFraction) {
+        List<Integer> terms = new ArrayList<>();
+        for (int term = 0; term < counts.length; term++) {
+            if (counts[term] > 0 && counts[term] >= minFraction * total) {
+                terms.add(term);
+            }
+        }
+        terms.sort((a, b) -> Long.compare(counts[b], counts[a]));
+        return terms;
+    }
+
+    /**
+     * The counts of the tiles of one lookup.  Each tile takes its own array, so tiles don't wait
+     * on each other, and the arrays are added to the coverage by merge once the lookup is done.
+     */
+    static class Parts {
+        private final TermCoverage coverage;
+        private final Queue<int[]> parts = new ConcurrentLinkedQueue<>();
+
+        private Parts(TermCoverage coverage) {
+            this.coverage = coverage;
+        }
+
+        /**
+         * @return A new array of 256 counts indexed by term value for one tile.
+         */
+        int[] newPart() {
+            int[] counts = new int[256];
+            parts.add(counts);
+            return counts;
+        }
+
+        /**
+         * Add the counts of every tile to the coverage.  This is called once all of the tiles are
+         * done.
+         */
+        void merge() {
+            synchronized (coverage) {
+                for (int[] counts : parts) {
+                    coverage.add(counts);
+                }
+            }
+            parts.clear();
+        }
+    }
+}
@@ -0,0 +1,911 @@
+package com.orbitals.colorfilter;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Storage for the term value of every 8-bit RGB triple.  Entries are addressed by
+ * (r << 16) | (g << 8) | b.  Depending on the number of terms, entries are stored as a full byte
+ * or packed into fewer bits, or as a two-level table; each storage form has its own lookup
+ * kernel.
+ * <p>
+ * Tables are held in direct or memory-mapped buffers outside of the Java heap and are never
+ * modified after they are built, so a single table can be shared by any number of readers.
+ */
+public abstract class TermLut {
+    public static final int ENTRIES = 256 * 256 * 256;
+    /**
+     * The number of pixels copied from a buffer to an array at a time for lookups on buffers.
+     */
+    static final int STAGE_PIXELS = 4096;
+    private static final BlockStore sharedBlocks = new BlockStore();
+    /**
+     * Per-thread arrays for RGB data and term values of STAGE_PIXELS pixels.
+     */
+    private static final ThreadLocal<byte[][]> stage = ThreadLocal.withInitial(() ->
+            new byte[][]{new byte[STAGE_PIXELS * 3], new byte[STAGE_PIXELS]});
+
+    /**
+     * Get the term value for a single entry.
+     *
+     * @param index (r << 16) | (g << 8) | b.
+     * @return The term value.
+     */
+    public abstract int get(int index);
+
+    /**
+     * Look up the term values for a run of RGB pixels.
+     *
+     * @param rgb        Interleaved 8-bit RGB data.
+     * @param rgbOffset  The offset of the first pixel in rgb.
+     * @param dest       The destination for one term value per pixel.
+     * @param destOffset The offset of the first value in dest.
+     * @param count      The number of pixels.
+     */
+    public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+        for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+            dest[j] = (byte) get(((rgb[i] & 0xFF) << 16) | ((rgb[i + 1] & 0xFF) << 8) | (rgb[i + 2] & 0xFF));
+        }
+    }
+
+    /**
+     * Look up the term values for a run of RGB pixels stored in buffers, such as the native
+     * memory of an image.  The pixels are moved through small per-thread arrays that stay in
+     * cache, which is faster than reading each value from the buffer.  Buffer positions are not
+     * used or changed.
+     *
+     * @param rgb        Interleaved 8-bit RGB data.
+     * @param rgbOffset  The offset of the first pixel in rgb.
+     * @param dest       The destination for one term value per pixel.
+     * @param destOffset The offset of the first value in dest.
+     * @param count      The number of pixels.
+     */
+    public final void lookup(ByteBuffer rgb, int rgbOffset, ByteBuffer dest, int destOffset, int count) {
+        lookup(rgb, rgbOffset, dest, destOffset, count, null);
+    }
+
+    /**
+     * Look up the term values for a run of RGB pixels stored in buffers and count how many
+     * pixels are each term as they pass through the per-thread arrays.
+     *
+     * @param rgb        Interleaved 8-bit RGB data.
+     * @param rgbOffset  The offset of the first pixel in rgb.
+     * @param dest       The destination for one term value per pixel.
+     * @param destOffset The offset of the first value in dest.
+     * @param count      The number of pixels.
+     * @param counts     Either null or an array of 256 counts indexed by term value that is
+     *                   added to.
+     */
+    public final void lookup(ByteBuffer rgb, int rgbOffset, ByteBuffer dest, int destOffset, int count, int[] counts) {
+        byte[][] arrays = getStage();
+        byte[] rgbStage = arrays[0];
+        byte[] destStage = arrays[1];
+        ByteBuffer src = rgb.duplicate();
+        ByteBuffer dst = dest.duplicate();
+        src.position(rgbOffset);
+        dst.position(destOffset);
+        for (int done = 0; done < count; done += STAGE_PIXELS) {
+            int length = Math.min(STAGE_PIXELS, count - done);
+            src.get(rgbStage, 0, length * 3);
+            lookup(rgbStage, 0, destStage, 0, length);
+            if (counts != null) {
+                count(destStage, length, counts);
+            }
+            dst.put(destStage, 0, length);
+        }
+    }
+
+    /**
+     * Count how many times each term value occurs.
+     *
+     * @param terms  Term values.
+     * @param length The number of values.
+     * @param counts An array of 256 counts indexed by term value that is added to.
+     */
+    static void count(byte[] terms, int length, int[] counts) {
+        for (int j = 0; j < length; j++) {
+            counts[terms[j] & 0xFF]++;
+        }
+    }
+
+    /**
+     * @return This thread's arrays for STAGE_PIXELS pixels of RGB data and term values.
+     */
+    static byte[][] getStage() {
+        return stage.get();
+    }
+
+    /**
+     * @return The number of bits used by each entry.
+     */
+    public abstract int getBitsPerEntry();
+
+    /**
+     * @return The number of bytes of storage used by the table.
+     */
+    public abstract long getByteSize();
+
+    /**
+     * Determine the number of bits per entry needed to store a number of terms.
+     *
+     * @param numTerms The number of terms.
+     * @param packed   If false, always use a byte per entry.
+     * @return 4, 5, or 8.
+     */
+    public static int bitsForTerms(int numTerms, boolean packed) {
+        if (packed && numTerms <= 16) {
+            return 4;
+        }
+        if (packed && numTerms <= 32) {
+            return 5;
+        }
+        return 8;
+    }
+
+    /**
+     * Get the number of bytes needed to store every entry with a number of bits per entry.  Packed
+     * forms other than 4 bits have an extra byte so the kernel can always read two bytes.
+     *
+     * @param bitsPerEntry 4, 5, or 8.
+     * @return The length in bytes.
+     */
+    public static int byteLength(int bitsPerEntry) {
+        int length = (int) ((long) ENTRIES * bitsPerEntry / 8);
+        return bitsPerEntry == 4 || bitsPerEntry == 8 ? length : length + 1;
+    }
+
+    /**
+     * Pack a byte-per-entry table.
+     *
+     * @param map          ENTRIES term values starting at position 0.
+     * @param bitsPerEntry 4, 5, or 8.
+     * @return The packed table.  This is map itself if bitsPerEntry is 8.
+     */
+    public static ByteBuffer pack(ByteBuffer map, int bitsPerEntry) {
+        if (bitsPerEntry == 8) {
+            return map;
+        }
+        ByteBuffer packed = allocate(byteLength(bitsPerEntry));
+        for (int i = 0; i < ENTRIES; i++) {
+            int bit = i * bitsPerEntry;
+            int value = (map.get(i) & ((1 << bitsPerEntry) - 1)) << (bit & 7);
+            packed.put(bit >>> 3, (byte) (packed.get(bit >>> 3) | value));
+            if ((value >>> 8) != 0) {
+                packed.put((bit >>> 3) + 1, (byte) (packed.get((bit >>> 3) + 1) | (value >>> 8)));
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Allocate zeroed table storage outside of the Java heap.
+     *
+     * @param size The size in bytes.
+     * @return A direct buffer in native byte order.
+     */
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Wrap stored table data with the matching lookup kernel.
+     *
+     * @param data         The table data as produced by pack.
+     * @param bitsPerEntry 4, 5, or 8.
+     * @return A table.
+     */
+    public static TermLut wrap(ByteBuffer data, int bitsPerEntry) {
+        switch (bitsPerEntry) {
+            case 8:
+                return new ByteLut(data);
+            case 4:
+                return new NibbleLut(data);
+            case 5:
+                return new PackedLut(data, bitsPerEntry);
+            default:
+                throw new IllegalArgumentException("Unsupported bits per entry: " + bitsPerEntry);
+        }
+    }
+
+    /**
+     * Build an exact two-level table from another table.  See TwoLevelLut.
+     *
+     * @param source The table to convert.
+     * @return A two-level table or null if the source's refinement blocks don't fit in the shared
+     * store, in which case none of its blocks are kept.
+     */
+    public static TermLut twoLevel(TermLut source) {
+        return TwoLevelLut.build(source);
+    }
+
+    /**
+     * Build a byte-per-entry table in Morton order from another table.  See MortonLut.
+     *
+     * @param source The table to convert.
+     * @return A Morton order table.
+     */
+    public static TermLut morton(TermLut source) {
+        return MortonLut.build(source);
+    }
+
+    /**
+     * Build an approximate table with fewer bits per channel from another table.  See
+     * ReducedLut.
+     *
+     * @param source         The table to convert.
+     * @param bitsPerChannel The number of bits of each channel to use, from 1 to 7.
+     * @return An approximate table.
+     */
+    public static TermLut reduced(TermLut source, int bitsPerChannel) {
+        return ReducedLut.build(source, bitsPerChannel);
+    }
+
+    /**
+     * Compute the fraction of entries that differ between two tables.  Red planes are compared
+     * in parallel.
+     *
+     * @param expected One table.
+     * @param actual   Another table.
+     * @return The fraction of the RGB cube with different values, from 0 to 1.
+     */
+    public static double differenceRate(TermLut expected, TermLut actual) {
+        long differences = IntStream.range(0, 256).parallel().mapToLong(r -> {
+            long count = 0;
+            for (int index = r << 16, end = index + 65536; index < end; index++) {
+                if (expected.get(index) != actual.get(index)) {
+                    count++;
+                }
+            }
+            return count;
+        }).sum();
+        return (double) differences / ENTRIES;
+    }
+
+    /**
+     * @return The number of bytes used by the refinement blocks shared by all two-level tables.
+     */
+    public static long getSharedByteSize() {
+        return sharedBlocks.getByteSize();
+    }
+
+    /**
+     * @return The number of refinement blocks used by two-level tables that are still reachable.
+     */
+    public static int getSharedBlockCount() {
+        return sharedBlocks.getBlockCount();
+    }
+
+    private static final class ByteLut extends TermLut {
+        private final ByteBuffer data;
+
+        ByteLut(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int get(int index) {
+            return data.get(index) & 0xFF;
+        }
+
+        @Override
+        public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+            ByteBuffer data = this.data;
+            for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+                dest[j] = data.get(((rgb[i] & 0xFF) << 16) | ((rgb[i + 1] & 0xFF) << 8) | (rgb[i + 2] & 0xFF));
+            }
+        }
+
+        @Override
+        public int getBitsPerEntry() {
+            return 8;
+        }
+
+        @Override
+        public long getByteSize() {
+            return data.capacity();
+        }
+    }
+
+    /**
+     * Two entries per byte, with the even entry in the low nibble.
+     */
+    private static final class NibbleLut extends TermLut {
+        private final ByteBuffer data;
+
+        NibbleLut(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int get(int index) {
+            return (data.get(index >>> 1) >> ((index & 1) << 2)) & 0x0F;
+        }
+
+        @Override
+        public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+            ByteBuffer data = this.data;
+            for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+                int index = ((rgb[i] & 0xFF) << 16) | ((rgb[i + 1] & 0xFF) << 8) | (rgb[i + 2] & 0xFF);
+                dest[j] = (byte) ((data.get(index >>> 1) >> ((index & 1) << 2)) & 0x0F);
+            }
+        }
+
+        @Override
+        public int getBitsPerEntry() {
+            return 4;
+        }
+
+        @Override
+        public long getByteSize() {
+            return data.capacity();
+        }
+    }
+
+    /**
+     * Entries of fewer than 8 bits in a little-endian bit stream.  An entry never spans more than
+     * two bytes.
+     */
+    private static final class PackedLut extends TermLut {
+        private final ByteBuffer data;
+        private final int bits;
+        private final int mask;
+
+        PackedLut(ByteBuffer data, int bits) {
+            this.data = data;
+            this.bits = bits;
+            this.mask = (1 << bits) - 1;
+        }
+
+        @Override
+        public int get(int index) {
+            int bit = index * bits;
+            int offset = bit >>> 3;
+            return (((data.get(offset) & 0xFF) | ((data.get(offset + 1) & 0xFF) << 8)) >>> (bit & 7)) & mask;
+        }
+
+        @Override
+        public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+            ByteBuffer data = this.data;
+            int bits = this.bits;
+            int mask = this.mask;
+            for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+                int bit = (((rgb[i] & 0xFF) << 16) | ((rgb[i + 1] & 0xFF) << 8) | (rgb[i + 2] & 0xFF)) * bits;
+                int offset = bit >>> 3;
+                dest[j] = (byte) ((((data.get(offset) & 0xFF) | ((data.get(offset + 1) & 0xFF) << 8)) >>> (bit & 7)) & mask);
+            }
+        }
+
+        @Override
+        public int getBitsPerEntry() {
+            return bits;
+        }
+
+        @Override
+        public long getByteSize() {
+            return data.capacity();
+        }
+    }
+
+    /**
+     * An approximate table that only uses the high bits of each channel.  Each entry holds the
+     * most common term of the cell of RGB values it covers.  With 6 bits per channel this is
+     * 256 kB and with 5 bits 32 kB, so it stays in cache.
+     */
+    private static final class ReducedLut extends TermLut {
+        private final ByteBuffer data;
+        private final int bits;
+        private final int shift;
+
+        private ReducedLut(ByteBuffer data, int bits) {
+            this.data = data;
+            this.bits = bits;
+            this.shift = 8 - bits;
+        }
+
+        static ReducedLut build(TermLut source, int bits) {
+            if (bits < 1 || bits > 7) {
+                throw new IllegalArgumentException("Unsupported bits per channel: " + bits);
+            }
+            int size = 1 << bits;
+            int shift = 8 - bits;
+            int cell = 1 << shift;
+            ByteBuffer data = allocate(size * size * size);
+            IntStream.range(0, size).parallel().forEach(rc -> {
+                int[] counts = new int[256];
+                for (int gc = 0; gc < size; gc++) {
+                    for (int bc = 0; bc < size; bc++) {
+                        Arrays.fill(counts, 0);
+                        int best = 0;
+                        for (int r = rc << shift; r < (rc + 1) << shift; r++) {
+                            for (int g = gc << shift; g < (gc + 1) << shift; g++) {
+                                int index = (r << 16) | (g << 8) | (bc << shift);
+                                for (int b = 0; b < cell; b++) {
+                                    int term = source.get(index + b);
+                                    if (++counts[term] > counts[best] || (counts[term] == counts[best] && term < best)) {
+                                        best = term;
+                                    }
+                                }
+                            }
+                        }
+                        data.put((((rc << bits) | gc) << bits) | bc, (byte) best);
+                    }
+                }
+            });
+            return new ReducedLut(data, bits);
+        }
+
+        @Override
+        public int get(int index) {
+            int r = (index >>> 16) >> shift;
+            int g = ((index >> 8) & 0xFF) >> shift;
+            int b = (index & 0xFF) >> shift;
+            return data.get((((r << bits) | g) << bits) | b) & 0xFF;
+        }
+
+        @Override
+        public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+            ByteBuffer data = this.data;
+            int bits = this.bits;
+            int shift = this.shift;
+            for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+                dest[j] = data.get(((((rgb[i] & 0xFF) >> shift) << (bits * 2)) | (((rgb[i + 1] & 0xFF) >> shift) << bits) | ((rgb[i + 2] & 0xFF) >> shift)));
+            }
+        }
+
+        @Override
+        public int getBitsPerEntry() {
+            return 8;
+        }
+
+        @Override
+        public long getByteSize() {
+            return data.capacity();
+        }
+    }
+
+    /**
+     * One byte per entry with the bits of red, green, and blue interleaved (Morton or Z-order)
+     * rather than concatenated.  Colors that are close in all three channels are close in
+     * memory, so the similar colors of neighboring pixels tend to hit the same cache lines.
+     */
+    private static final class MortonLut extends TermLut {
+        /**
+         * Each 8-bit value with its bits spread out to every third bit.
+         */
+        private static final int[] SPREAD = new int[256];
+
+        static {
+            for (int v = 0; v < 256; v++) {
+                int spread = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    spread |= ((v >> bit) & 1) << (bit * 3);
+                }
+                SPREAD[v] = spread;
+            }
+        }
+
+        private final ByteBuffer data;
+
+        private MortonLut(ByteBuffer data) {
+            this.data = data;
+        }
+
+        static MortonLut build(TermLut source) {
+            ByteBuffer data = allocate(ENTRIES);
+            // Absolute puts don't share any state, so red planes can be filled in parallel
+            IntStream.range(0, 256).parallel().forEach(r -> {
+                for (int index = r << 16, end = index + (1 << 16); index < end; index++) {
+                    data.put(mortonIndex(r, (index >> 8) & 0xFF, index & 0xFF), (byte) source.get(index));
+                }
+            });
+            return new MortonLut(data);
+        }
+
+        private static int mortonIndex(int r, int g, int b) {
+            return (SPREAD[r] << 2) | (SPREAD[g] << 1) | SPREAD[b];
+        }
+
+        @Override
+        public int get(int index) {
+            return data.get(mortonIndex(index >>> 16, (index >> 8) & 0xFF, index & 0xFF)) & 0xFF;
+        }
+
+        @Override
+        public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+            ByteBuffer data = this.data;
+            int[] spread = SPREAD;
+            for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+                dest[j] = data.get((spread[rgb[i] & 0xFF] << 2) | (spread[rgb[i + 1] & 0xFF] << 1) | spread[rgb[i + 2] & 0xFF]);
+            }
+        }
+
+        @Override
+        public int getBitsPerEntry() {
+            return 8;
+        }
+
+        @Override
+        public long getByteSize() {
+            return data.capacity();
+        }
+    }
+
+    /**
+     * A coarse table with 6 bits per channel whose cells are either a single term, for cells of
+     * 4 x 4 x 4 RGB values that all have the same term, or an index into the shared refinement
+     * blocks that hold the 64 exact values.  Most of the RGB cube is uniform, so most lookups
+     * only touch the 512 kB coarse table, which stays in cache far better than a flat table.
+     */
+    private static final class TwoLevelLut extends TermLut {
+        private static final int CELL_BITS = 2;
+        private static final int CELL_SIZE = 1 << CELL_BITS;
+        private static final int CELL_MASK = CELL_SIZE - 1;
+        private static final int COARSE_BITS = 8 - CELL_BITS;
+        private static final int COARSE_SIZE = 1 << COARSE_BITS;
+        /**
+         * Coarse values below this are terms; values at or above are REFINE + block index.
+         */
+        private static final int REFINE = 256;
+
+        private final CharBuffer coarse;
+        /**
+         * The refinement block chunks as of when this table was built.  Chunks are never moved
+         * or modified once a block is in them, so this stays valid as the store grows.
+         */
+        private final ByteBuffer[] chunks;
+        private final int blockCount;
+
+        private TwoLevelLut(CharBuffer coarse, ByteBuffer[] chunks, int blockCount) {
+            this.coarse = coarse;
+            this.chunks = chunks;
+            this.blockCount = blockCount;
+        }
+
+        /**
+         * Build a two-level table.  Each slab of cells with the same red range is read and
+         * split into cells in parallel; the refinement blocks are then added to the shared
+         * store in order, so the result doesn't depend on the thread timing.
+         */
+        static TwoLevelLut build(TermLut source) {
+            char[] coarse = new char[COARSE_SIZE * COARSE_SIZE * COARSE_SIZE];
+            int slabCells = COARSE_SIZE * COARSE_SIZE;
+            // The refinement blocks of each slab in cell order; the coarse cells of a slab
+            // temporarily hold REFINE + the position of their block in the slab
+            byte[][][] slabBlocks = new byte[COARSE_SIZE][][];
+            IntStream.range(0, COARSE_SIZE).parallel().forEach(slab -> {
+                byte[] values = new byte[CELL_SIZE << 16];
+                for (int i = 0, index = slab << (CELL_BITS + 16); i < values.length; i++, index++) {
+                    values[i] = (byte) source.get(index);
+                }
+                List<byte[]> blocks = new ArrayList<>();
+                byte[] block = new byte[BlockStore.BLOCK_SIZE];
+                for (int cell = 0; cell < slabCells; cell++) {
+                    int g0 = (cell >> COARSE_BITS) << CELL_BITS;
+                    int b0 = (cell & (COARSE_SIZE - 1)) << CELL_BITS;
+                    boolean uniform = true;
+                    for (int k = 0; k < BlockStore.BLOCK_SIZE; k++) {
+                        int r = k >> (CELL_BITS * 2);
+                        int g = g0 + ((k >> CELL_BITS) & CELL_MASK);
+                        int b = b0 + (k & CELL_MASK);
+                        block[k] = values[(r << 16) | (g << 8) | b];
+                        uniform &= block[k] == block[0];
+                    }
+                    if (uniform) {
+                        coarse[slab * slabCells + cell] = (char) (block[0] & 0xFF);
+                    } else {
+                        coarse[slab * slabCells + cell] = (char) (REFINE + blocks.size());
+                        blocks.add(block.clone());
+                    }
+                }
+                slabBlocks[slab] = blocks.toArray(new byte[0][]);
+            });
+            List<byte[]> blocks = new ArrayList<>();
+            for (byte[][] slab : slabBlocks) {
+                blocks.addAll(Arrays.asList(slab));
+            }
+            // Allocated first, so nothing can fail once the blocks have been added to the store
+            CharBuffer coarseBuffer = allocate(coarse.length * 2).asCharBuffer();
+            int[] indices = sharedBlocks.addAll(blocks.toArray(new byte[0][]));
+            if (indices == null) {
+                return null;
+            }
+            for (int cell = 0, next = 0; cell < coarse.length; cell++) {
+                if (coarse[cell] >= REFINE) {
+                    coarse[cell] = (char) (REFINE + indices[next++]);
+                }
+            }
+            coarseBuffer.put(coarse);
+            int[] used = Arrays.stream(indices).distinct().toArray();
+            TwoLevelLut table = new TwoLevelLut(coarseBuffer, sharedBlocks.getChunks(), used.length);
+            sharedBlocks.track(table, used);
+            return table;
+        }
+
+        @Override
+        public int get(int index) {
+            int r = index >>> 16;
+            int g = (index >> 8) & 0xFF;
+            int b = index & 0xFF;
+            int value = coarse.get(((r >> CELL_BITS) << (COARSE_BITS * 2)) | ((g >> CELL_BITS) << COARSE_BITS) | (b >> CELL_BITS));
+            if (value >= REFINE) {
+                value -= REFINE;
+                value = chunks[value >> BlockStore.CHUNK_BITS].get(((value & BlockStore.CHUNK_MASK) << BlockStore.BLOCK_BITS) | ((r & CELL_MASK) << (CELL_BITS * 2)) | ((g & CELL_MASK) << CELL_BITS) | (b & CELL_MASK)) & 0xFF;
+            }
+            return value;
+        }
+
+        @Override
+        public void lookup(byte[] rgb, int rgbOffset, byte[] dest, int destOffset, int count) {
+            CharBuffer coarse = this.coarse;
+            ByteBuffer[] chunks = this.chunks;
+            for (int i = rgbOffset, j = destOffset, end = destOffset + count; j < end; i += 3, j++) {
+                int r = rgb[i] & 0xFF;
+                int g = rgb[i + 1] & 0xFF;
+                int b = rgb[i + 2] & 0xFF;
+                int value = coarse.get(((r >> CELL_BITS) << (COARSE_BITS * 2)) | ((g >> CELL_BITS) << COARSE_BITS) | (b >> CELL_BITS));
+                if (value >= REFINE) {
+                    value -= REFINE;
+                    value = chunks[value >> BlockStore.CHUNK_BITS].get(((value & BlockStore.CHUNK_MASK) << BlockStore.BLOCK_BITS) | ((r & CELL_MASK) << (CELL_BITS * 2)) | ((g & CELL_MASK) << CELL_BITS) | (b & CELL_MASK));
+                }
+                dest[j] = (byte) value;
+            }
+        }
+
+        @Override
+        public int getBitsPerEntry() {
+            return 8;
+        }
+
+        /**
+         * @return The size of the coarse table plus the refinement blocks this table uses.  Blocks
+         * that are shared with other tables are counted by each of them.
+         */
+        @Override
+        public long getByteSize() {
+            return coarse.capacity() * 2L + (long) blockCount * BlockStore.BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Content-addressed storage for the 4 x 4 x 4 refinement blocks of two-level tables.  The
+     * term maps for different color spaces and term sets have many boundary regions in common,
+     * so identical blocks are stored once for all tables.  Blocks are kept in fixed size direct
+     * chunks that are never moved; the hash index is a single open-addressed int array.
+     * <p>
+     * Each block counts the tables that use it.  Once a table is no longer reachable, its blocks
+     * are released the next time blocks are added, and blocks that no table uses any more are
+     * reused, so the store only grows to the most blocks in use at once.
+     */
+    private static final class BlockStore {
+        static final int BLOCK_BITS = 6;
+        static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+        static final int CHUNK_BITS = 12;
+        static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+        /**
+         * The most blocks that a two-level table can address.
+         */
+        static final int MAX_BLOCKS = Character.MAX_VALUE + 1 - TwoLevelLut.REFINE;
+        /**
+         * The slot value of a block that has been freed.  Lookups continue past it.
+         */
+        private static final int DELETED = -1;
+
+        /**
+         * Block index + 1 for each hash slot, 0 for an empty slot, or DELETED.  Blocks fill at
+         * most half of the slots and the index is rebuilt before deleted slots fill a quarter.
+         */
+        private int[] slots = new int[Integer.highestOneBit(MAX_BLOCKS) << 2];
+        private ByteBuffer[] chunks = new ByteBuffer[0];
+        /**
+         * The number of block indexes that have been handed out, including freed ones.
+         */
+        private int count;
+        private int deleted;
+        private int[] references = new int[0];
+        private int[] free = new int[0];
+        private int freeCount;
+        private final ReferenceQueue<TermLut> released = new ReferenceQueue<>();
+        /**
+         * The blocks of each live table.  The references must be reachable to be enqueued.
+         */
+        private final Set<TableBlocks> tables = new HashSet<>();
+
+        private static final class TableBlocks extends PhantomReference<TermLut> {
+            final int[] blocks;
+
+            TableBlocks(TermLut table, int[] blocks, ReferenceQueue<TermLut> queue) {
+                super(table, queue);
+                this.blocks = blocks;
+            }
+        }
+
+        /**
+         * Find or add the blocks of a table.  Either every block is stored or, if the store is
+         * full, none are.  Each distinct block is counted as used until the table is tracked and
+         * later released.
+         *
+         * @param blocks Blocks of BLOCK_SIZE term values.
+         * @return The index of each block or null if the store is full.
+         */
+        synchronized int[] addAll(byte[][] blocks) {
+            releaseUnused();
+            int[] indices = new int[blocks.length];
+            int[] added = new int[blocks.length];
+            int addedCount = 0;
+            for (int i = 0; i < blocks.length; i++) {
+                int index = find(blocks[i]);
+                if (index < 0) {
+                    index = insert(blocks[i]);
+                    if (index < 0) {
+                        // Roll back, so a table that doesn't fit leaves nothing behind
+                        for (int j = 0; j < addedCount; j++) {
+                            remove(added[j]);
+                        }
+                        return null;
+                    }
+                    added[addedCount++] = index;
+                }
+                indices[i] = index;
+            }
+            for (int index : Arrays.stream(indices).distinct().toArray()) {
+                references[index]++;
+            }
+            return indices;
+        }
+
+        /**
+         * Release a table's blocks once the table is no longer reachable.
+         *
+         * @param table  The table.
+         * @param blocks The distinct blocks that were counted for it by addAll.
+         */
+        synchronized void track(TermLut table, int[] blocks) {
+            tables.add(new TableBlocks(table, blocks, released));
+        }
+
+        private void releaseUnused() {
+            Reference<? extends TermLut> reference;
+            while ((reference = released.poll()) != null) {
+                TableBlocks table = (TableBlocks) reference;
+                tables.remove(table);
+                for (int index : table.blocks) {
+                    if (--references[index] == 0) {
+                        remove(index);
+                    }
+                }
+            }
+        }
+
+        private int find(byte[] block) {
+            int mask = slots.length - 1;
+            for (int slot = Arrays.hashCode(block) & mask; ; slot = (slot + 1) & mask) {
+                int value = slots[slot];
+                if (value == 0) {
+                    return -1;
+                }
+                if (value != DELETED && matches(value - 1, block)) {
+                    return value - 1;
+                }
+            }
+        }
+
+        /**
+         * Store a block that isn't in the store yet.
+         *
+         * @return The new block index or -1 if the store is full.
+         */
+        private int insert(byte[] block) {
+            int index;
+            if (freeCount > 0) {
+                index = free[--freeCount];
+            } else if (count < MAX_BLOCKS) {
+                index = count++;
+                if ((index >> CHUNK_BITS) == chunks.length) {
+                    chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                    chunks[chunks.length - 1] = allocate(BLOCK_SIZE << CHUNK_BITS);
+                    references = Arrays.copyOf(references, chunks.length << CHUNK_BITS);
+                }
+            } else {
+                return -1;
+            }
+            ByteBuffer chunk = chunks[index >> CHUNK_BITS].duplicate();
+            chunk.position((index & CHUNK_MASK) << BLOCK_BITS);
+            chunk.put(block);
+            int mask = slots.length - 1;
+            int slot = Arrays.hashCode(block) & mask;
+            while (slots[slot] > 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (slots[slot] == DELETED) {
+                deleted--;
+            }
+            slots[slot] = index + 1;
+            return index;
+        }
+
+        /**
+         * Remove a block from the index and make its space available for reuse.
+         */
+        private void remove(int index) {
+            byte[] block = getBlock(index);
+            int mask = slots.length - 1;
+            int slot = Arrays.hashCode(block) & mask;
+            while (slots[slot] != index + 1) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = DELETED;
+            deleted++;
+            if (free.length == freeCount) {
+                free = Arrays.copyOf(free, Math.max(16, freeCount * 2));
+            }
+            free[freeCount++] = index;
+            if (deleted > slots.length / 4) {
+                rehash();
+            }
+        }
+
+        /**
+         * Rebuild the index without its deleted slots.
+         */
+        private void rehash() {
+            int[] old = slots;
+            slots = new int[old.length];
+            deleted = 0;
+            int mask = slots.length - 1;
+            for (int value : old) {
+                if (value > 0) {
+                    int slot = Arrays.hashCode(getBlock(value - 1)) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = value;
+                }
+            }
+        }
+
+        private byte[] getBlock(int index) {
+            byte[] block = new byte[BLOCK_SIZE];
+            ByteBuffer chunk = chunks[index >> CHUNK_BITS].duplicate();
+            chunk.position((index & CHUNK_MASK) << BLOCK_BITS);
+            chunk.get(block);
+            return block;
+        }
+
+        private boolean matches(int index, byte[] block) {
+            ByteBuffer chunk = chunks[index >> CHUNK_BITS];
+            int base = (index & CHUNK_MASK) << BLOCK_BITS;
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                if (chunk.get(base + k) != block[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized ByteBuffer[] getChunks() {
+            return chunks;
+        }
+
+        synchronized long getByteSize() {
+            return (long) chunks.length * (BLOCK_SIZE << CHUNK_BITS) + slots.length * 4L;
+        }
+
+        /**
+         * @return The number of blocks used by live tables.
+         */
+        synchronized int getBlockCount() {
+            releaseUnused();
+            return count - freeCount;
+        }
+    }
+}
@@ -16,26 +16,152 @@ import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.IntStream;
 
 public class TermMap {
+    /**
+     * How the term value of each RGB triple is stored.
+     */
+    public enum Storage {
+        /**
+         * One byte per entry (16 MB).
+         */
+        BYTE,
+        /**
+         * 4 bits per entry for maps with at most 16 terms, 5 bits for at most 32 terms, otherwise
+         * one byte per entry.
+         */
+        PACKED,
+        /**
+         * A coarse table that answers directly for uniform regions of the RGB cube plus
+         * refinement blocks for regions that straddle a term boundary.  This is built from the
+         * packed form in the background once the map is loaded; until then the packed form is
+         * used.  Refinement blocks are shared by all term maps, so
+         * several maps can be resident at once for about 1 MB each.
+         */
+        TWO_LEVEL,
+        /**
+         * One byte per entry (16 MB) with the bits of red, green, and blue interleaved, so that
+         * similar colors are stored near each other.
+         */
+        MORTON
+    }
+
+    /**
+     * How images are smoothed before terms are looked up when the blur is negative.
+     */
+    public enum Smoothing {
+        /**
+         * A Gaussian blur of the blur size.
+         */
+        GAUSSIAN,
+        /**
+         * Two passes of a box blur, each of which costs the same for any size, sized so that
+         * together they spread colors about as far as the Gaussian blur.
+         */
+        BOX,
+        /**
+         * Halve the image, apply a Gaussian blur of half the size, and scale it back up.  Only a
+         * quarter of the pixels are blurred.
+         */
+        PYRAMID
+    }
+
     /**
      * @noinspection SpellCheckingInspection
      */
     private static final String TAG = "com.orbitals.colorfilter.TermMap";
     private static boolean matchedColorSpace = false;
+    /**
+     * Term map data is loaded on a single background thread so that the selected map, which is
+     * requested first, is also available first.
+     */
+    private static final ExecutorService loadExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * Loaded tables are shared by every TermMap that uses the same resource and storage, so
+     * loading the term maps again (for instance, for another FilterProcessor) doesn't duplicate
+     * them.  The tables are released once no TermMap refers to them.
+     */
+    private static final Map<String, WeakReference<TermLut>> sharedMaps = new HashMap<>();
+    /**
+     * Single-term bitsets and approximate tables are built on their own thread so that they
+     * don't wait behind loading other term maps.
+     */
+    private static final ExecutorService derivedExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * The number of recently used single-term bitsets to keep for each term map.
+     */
+    private static final int TERM_BITSETS = 4;
+    /**
+     * The bits per channel of the approximate table.
+     */
+    private static final int APPROXIMATE_BITS = 6;
+    /**
+     * With automatic downscaling, images are reduced by up to 4 while they still have at least
+     * this many pixels.
+     */
+    private static final int AUTO_DOWNSCALE_PIXELS = 640 * 480;
+    /**
+     * Working buffers for createMap and createMask.  These are per thread and shared by all term
+     * maps, so processing a stream of frames of the same size doesn't allocate.
+     */
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
     private final String name;
     private final String id;
     private final String description;
     private final String reference;
     private final List<String> terms;
-    private final byte[] map;
+    private final Resources resources;
+    private final int termMapResourceId;
+    private final File cacheDir;
+    private final ColorSpace colorSpace;
+    /**
+     * Tables for other source color spaces, keyed by color space id.
+     */
+    private final Map<Integer, TermLut> derivedMaps = new HashMap<>();
+    private final Map<Integer, List<Runnable>> derivedListeners = new HashMap<>();
+    private final Map<Integer, Future<?>> derivedLoading = new HashMap<>();
+    private final List<Runnable> loadListeners = new ArrayList<>();
+    private Future<?> loading;
+    private Future<?> converting;
+    private volatile TermLut map;
+    private volatile TermStats[] termStats;
+    private final Object statsLock = new Object();
+    private final Map<Integer, TermBitset> termBitsets = new LinkedHashMap<Integer, TermBitset>(TERM_BITSETS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TermBitset> eldest) {
+            return size() > TERM_BITSETS;
+        }
+    };
+    private final Set<Integer> pendingBitsets = new HashSet<>();
+    private volatile TermLut approximateMap;
+    private volatile double approximateErrorRate = Double.NaN;
+    private boolean approximatePending;
+    private volatile TermLut yuvMap;
+    private boolean yuvPending;
+    private Storage storage = Storage.TWO_LEVEL;
+    private Smoothing smoothing = Smoothing.GAUSSIAN;
     private final int[] lastCenterLog = new int[]{-1, -1, -1, -1};
     private int blur = 5;
+    private int downscale = 1;
 
     /**
      * Create a TermMap.
@@ -50,39 +176,314 @@ public class TermMap {
      *                          lossless image or a palette lossless image.
      */
     public TermMap(String name, String id, String description, String reference, List<String> terms, Resources resources, int termMapResourceId) {
+        this(name, id, description, reference, terms, resources, termMapResourceId, null);
+    }
+
+    /**
+     * Create a TermMap.  The metadata is available immediately; the term map data is loaded on a
+     * background thread when prefetch is called or the first time it is needed.
+     *
+     * @param name              The display name of the TermMap.
+     * @param id                A unique identifier for the TermMap.  This should probably be the
+     *                          locale combined with the name (e.g., en_US_BCT20).
+     * @param terms             A list of terms.  The internal resource should use values in the
+     *                          range of [0, number of terms).
+     * @param resources         The resources to load from.
+     * @param termMapResourceId The resource id to load.  This should either be a greyscale
+     *                          lossless image or a palette lossless image.
+     * @param cacheDir          If not null, a directory where the decoded term map is stored in
+     *                          the binary format and memory-mapped from.  If null, or if the
+     *                          binary file can't be used, the image is decoded on the heap.
+     */
+    public TermMap(String name, String id, String description, String reference, List<String> terms, Resources resources, int termMapResourceId, File cacheDir) {
+        this(name, id, description, reference, terms, resources, termMapResourceId, cacheDir, null);
+    }
+
+    /**
+     * Create a TermMap.  The metadata is available immediately; the term map data is loaded on a
+     * background thread when prefetch is called or the first time it is needed.
+     *
+     * @param name              The display name of the TermMap.
+     * @param id                A unique identifier for the TermMap.  This should probably be the
+     *                          locale combined with the name (e.g., en_US_BCT20).
+     * @param terms             A list of terms.  The internal resource should use values in the
+     *                          range of [0, number of terms).
+     * @param resources         The resources to load from.
+     * @param termMapResourceId The resource id to load.  This should either be a greyscale
+     *                          lossless image or a palette lossless image.
+     * @param cacheDir          If not null, a directory where the decoded term map is stored in
+     *                          the binary format and memory-mapped from.  If null, or if the
+     *                          binary file can't be used, the image is decoded on the heap.
+     * @param colorSpace        The color space of the RGB values of the term map resource.  If
+     *                          null, this is sRGB.
+     */
+    public TermMap(String name, String id, String description, String reference, List<String> terms, Resources resources, int termMapResourceId, File cacheDir, ColorSpace colorSpace) {
+        this.colorSpace = colorSpace != null ? colorSpace : ColorSpace.get(ColorSpace.Named.SRGB);
         this.name = name;
         this.id = id;
         this.description = description;
         this.reference = reference;
         this.terms = Collections.unmodifiableList(new ArrayList<>(terms));
-        map = new byte[4096 * 4096];
+        this.resources = resources;
+        this.termMapResourceId = termMapResourceId;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Check if the term map data has been loaded.
+     *
+     * @return True if the term map can be used without blocking.
+     */
+    public boolean isLoaded() {
+        return map != null;
+    }
+
+    /**
+     * Start loading the term map data in the background if it isn't already loaded or loading.
+     */
+    public void prefetch() {
+        prefetch(null);
+    }
+
+    /**
+     * Start loading the term map data in the background if it isn't already loaded or loading.
+     *
+     * @param onLoaded If not null, a callback to run once the data is loaded.  If the data is
+     *                 already loaded, this is called immediately; otherwise it is called on the
+     *                 loading thread.  Adding the same callback more than once has no further
+     *                 effect.
+     */
+    public void prefetch(Runnable onLoaded) {
+        synchronized (this) {
+            if (map == null) {
+                if (onLoaded != null && !loadListeners.contains(onLoaded)) {
+                    loadListeners.add(onLoaded);
+                }
+                if (loading == null) {
+                    loading = loadExecutor.submit(this::loadMap);
+                }
+                return;
+            }
+        }
+        if (onLoaded != null) {
+            onLoaded.run();
+        }
+    }
+
+    /**
+     * Load the term map data, blocking until it is available.
+     */
+    public void awaitLoaded() {
+        Future<?> pending;
+        synchronized (this) {
+            if (map != null) {
+                return;
+            }
+            prefetch();
+            pending = loading;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to load term map " + id, e);
+        }
+    }
+
+    /**
+     * Wait until the term map data is in the selected storage form.  The data can be used as
+     * soon as it is loaded; the two-level and Morton forms are then built from the packed form
+     * on a background thread and replace it once they are ready.
+     */
+    public void awaitStorage() {
+        awaitLoaded();
+        Future<?> pending;
+        synchronized (this) {
+            pending = converting;
+        }
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to convert term map " + id, e);
+        }
+    }
+
+    private void loadMap() {
+        TermLut loaded = null;
+        boolean converted = storage != Storage.MORTON && storage != Storage.TWO_LEVEL;
+        int bitsPerEntry = TermLut.bitsForTerms(terms.size(), storage != Storage.BYTE);
+        String key = termMapResourceId + ":" + bitsPerEntry + ":" + cacheDir;
+        try {
+            if (!converted) {
+                loaded = getSharedMap(termMapResourceId + ":" + storage + ":" + cacheDir);
+                converted = loaded != null;
+            }
+            if (loaded == null) {
+                loaded = getSharedMap(key);
+            }
+            if (loaded == null) {
+                loaded = createLut(bitsPerEntry);
+                putSharedMap(key, loaded);
+            }
+        } catch (RuntimeException | OutOfMemoryError e) {
+            Log.e(TAG, "Failed to load term map " + id, e);
+            loaded = null;
+        }
+        List<Runnable> listeners;
+        synchronized (this) {
+            map = loaded;
+            if (loaded == null) {
+                // Allow a later request to try again
+                loading = null;
+                return;
+            }
+            if (!converted) {
+                TermLut packed = loaded;
+                converting = derivedExecutor.submit(() -> convertMap(packed));
+            }
+            listeners = new ArrayList<>(loadListeners);
+            loadListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private static TermLut getSharedMap(String key) {
+        synchronized (sharedMaps) {
+            WeakReference<TermLut> shared = sharedMaps.get(key);
+            return shared != null ? shared.get() : null;
+        }
+    }
+
+    private static void putSharedMap(String key, TermLut map) {
+        synchronized (sharedMaps) {
+            sharedMaps.put(key, new WeakReference<>(map));
+        }
+    }
+
+    /**
+     * Load the packed term map data, either memory-mapped from the cache or decoded from the
+     * resource.
+     *
+     * @param bitsPerEntry The bits per entry of the packed form.
+     * @return The loaded table.
+     */
+    private TermLut createLut(int bitsPerEntry) {
+        long start = System.nanoTime();
+        ByteBuffer data = null;
+        if (cacheDir != null) {
+            data = TermMapFile.open(cacheDir, resources, termMapResourceId, bitsPerEntry);
+        }
+        if (data == null) {
+            data = TermLut.pack(decodeResource(resources, termMapResourceId), bitsPerEntry);
+        }
+        TermLut loaded = TermLut.wrap(data, bitsPerEntry);
+        Log.d(TAG, String.format("Loaded term map %s (%d bytes) in %d ms",
+                id, loaded.getByteSize(), (System.nanoTime() - start) / 1000000));
+        return loaded;
+    }
+
+    /**
+     * Build the selected storage form from the packed table and use it in place of the packed
+     * table.  Both have the same entries, so lookups that are already running on the packed
+     * table aren't affected.
+     *
+     * @param packed The packed table.
+     */
+    private void convertMap(TermLut packed) {
+        String key = termMapResourceId + ":" + storage + ":" + cacheDir;
+        TermLut converted = getSharedMap(key);
+        if (converted == null) {
+            long start = System.nanoTime();
+            try {
+                converted = storage == Storage.MORTON ? TermLut.morton(packed) : TermLut.twoLevel(packed);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.e(TAG, "Failed to convert term map " + id, e);
+            }
+            if (converted == null) {
+                Log.w(TAG, "Term map " + id + " can't be stored as " + storage + "; keeping the packed table");
+                return;
+            }
+            Log.d(TAG, String.format("Converted term map %s to %s (%d bytes) in %d ms",
+                    id, storage, converted.getByteSize(), (System.nanoTime() - start) / 1000000));
+            putSharedMap(key, converted);
+        }
+        map = converted;
+    }
+
+    /**
+     * Get the term map data, waiting for it to load if necessary.
+     *
+     * @return The term map data or null if it could not be loaded.
+     */
+    private TermLut getLoadedMap() {
+        if (map == null) {
+            awaitLoaded();
+        }
+        return map;
+    }
+
+    /**
+     * Decode a term map image resource into one byte per RGB triple.  Each 256 x 256 tile of the
+     * image is converted to grayscale directly into its place in the destination buffer; tiles
+     * are processed in parallel.
+     *
+     * @param resources         The resources to load from.
+     * @param termMapResourceId The resource id to load.
+     * @return A direct buffer of 4096 * 4096 term values.
+     */
+    static ByteBuffer decodeResource(Resources resources, int termMapResourceId) {
+        long start = System.nanoTime();
+        int imageSize = 256;
+        int tilesPerRow = 16;
+        ByteBuffer map = ByteBuffer.allocateDirect(TermLut.ENTRIES);
 
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
         Bitmap bitmap = BitmapFactory.decodeResource(resources, termMapResourceId, options);
 
-        Mat tmpMat = new Mat();
-        Utils.bitmapToMat(bitmap, tmpMat);
-        Mat mat = new Mat();
-        Imgproc.cvtColor(tmpMat, mat, Imgproc.COLOR_RGBA2GRAY);
+        Mat image = new Mat();
+        Utils.bitmapToMat(bitmap, image);
         bitmap.recycle();
-        int imageSize = 256;
-        int bytesPerImage = imageSize * imageSize;
-        for (int i = 0; i < 256; i++) {
-            int row = i / 16;
-            int col = i % 16;
-            int x = col * imageSize;
-            int y = row * imageSize;
-
-            Rect rect = new Rect(x, y, imageSize, imageSize);
-            Mat subMat = new Mat(mat, rect);
-            byte[] subImageBytes = new byte[subMat.rows() * subMat.cols()];
-            subMat.get(0, 0, subImageBytes);
-            System.arraycopy(subImageBytes, 0, map, i * bytesPerImage, bytesPerImage);
-        }
+        // The destination as a column of tiles, so that tile i is rows i * 256 to (i + 1) * 256
+        Mat dest = new Mat(TermLut.ENTRIES / imageSize, imageSize, CvType.CV_8UC1, map);
+        IntStream.range(0, tilesPerRow * tilesPerRow).parallel().forEach(i -> {
+            int x = (i % tilesPerRow) * imageSize;
+            int y = (i / tilesPerRow) * imageSize;
+            Mat srcTile = image.submat(new Rect(x, y, imageSize, imageSize));
+            Mat destTile = dest.submat(i * imageSize, (i + 1) * imageSize, 0, imageSize);
+            Imgproc.cvtColor(srcTile, destTile, Imgproc.COLOR_RGBA2GRAY);
+            srcTile.release();
+            destTile.release();
+        });
+        dest.release();
+        image.release();
+        Log.d(TAG, String.format("Decoded term map resource %s in %d ms",
+                resources.getResourceEntryName(termMapResourceId), (System.nanoTime() - start) / 1000000));
+        return map;
     }
 
     public static ArrayList<TermMap> loadTermMaps(Resources resources, ColorSpace colorSpace) {
+        return loadTermMaps(resources, colorSpace, null);
+    }
+
+    /**
+     * Load all of the term maps listed in the resources.
+     *
+     * @param resources  The resources to load from.
+     * @param colorSpace The preferred color space.  If a term map has an image for this color
+     *                   space, it is used, otherwise the sRGB image is used.
+     * @param cacheDir   If not null, a directory to store memory-mapped binary term maps.
+     * @return A list of term maps.
+     */
+    public static ArrayList<TermMap> loadTermMaps(Resources resources, ColorSpace colorSpace, File cacheDir) {
         ArrayList<TermMap> termMaps = new ArrayList<>();
 
         int NAME = 0;
@@ -110,6 +511,7 @@ public class TermMap {
 
                     int imagesArrayId = termMapArray.getResourceId(IMAGES, 0);
                     int termMapResourceId = 0;
+                    ColorSpace termMapColorSpace = null;
                     TypedArray imagesArray = resources.obtainTypedArray(imagesArrayId);
                     try {
                         for (int j = 0; j < imagesArray.length(); j++) {
@@ -120,9 +522,11 @@ public class TermMap {
                                 int imageId = imageArray.getResourceId(IMAGE_ID, 0);
                                 if (termMapResourceId == 0 || (colorSpaceName != null && colorSpaceName.equals("SRGB"))) {
                                     termMapResourceId = imageId;
+                                    termMapColorSpace = colorSpaceName != null ? ColorSpace.get(ColorSpace.Named.valueOf(colorSpaceName)) : null;
                                 }
                                 if (colorSpaceName != null && colorSpace.equals(ColorSpace.get(ColorSpace.Named.valueOf(colorSpaceName)))) {
                                     termMapResourceId = imageId;
+                                    termMapColorSpace = colorSpace;
                                     matchedColorSpace = true;
                                     break;
                                 }
@@ -133,7 +537,7 @@ public class TermMap {
                     } finally {
                         imagesArray.recycle();
                     }
-                    termMaps.add(new TermMap(name, id, description, reference, terms, resources, termMapResourceId));
+                    termMaps.add(new TermMap(name, id, description, reference, terms, resources, termMapResourceId, cacheDir, termMapColorSpace));
                 } finally {
                     termMapArray.recycle();
                 }
@@ -175,97 +579,1567 @@ public class TermMap {
     }
 
     /**
-     * @noinspection unused
+     * Get the term map data, waiting for it to load if necessary.  This is the loaded table
+     * itself rather than a copy; it is read-only and may be shared with other TermMaps.
+     *
+     * @return The term value of every RGB triple or null if the map could not be loaded.
      */
-    public byte[] getMap() {
-        return map != null ? Arrays.copyOf(map, map.length) : null;
+    public TermLut getMap() {
+        return getLoadedMap();
     }
 
     /**
-     * Get the blur value used to reduce variations.
+     * @return How the term map data is stored.
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Set how the term map data is stored.  This only has an effect if it is called before the
+     * data is loaded.
      *
-     * @return The current blur value.
-     * @noinspection unused
+     * @param storage The storage form to use.
      */
-    public int getBlur() {
-        return blur;
+    public void setStorage(Storage storage) {
+        this.storage = storage;
     }
 
     /**
-     * Set the blur value used to reduce variations.
+     * @return How images are smoothed before terms are looked up.
+     */
+    public Smoothing getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * Set how images are smoothed before terms are looked up.  This only matters when the blur
+     * is negative.
      *
-     * @param blur Either 0 or an odd number.  If negative, the blur is applied BEFORE the color
-     *             terms.  If positive, it is applied AFTER the color terms.
-     * @noinspection unused
+     * @param smoothing The smoothing method.
      */
-    public void setBlur(int blur) {
-        this.blur = blur;
+    public void setSmoothing(Smoothing smoothing) {
+        this.smoothing = smoothing;
     }
 
     /**
-     * Given an input image in RGB color space, create a mask image that is single channel and has
-     * either 0 or 255 at each pixel.
+     * @return The number of bytes used to store the term map data, waiting for it to load if
+     * necessary.
+     */
+    public long getMapByteSize() {
+        TermLut map = getLoadedMap();
+        return map != null ? map.getByteSize() : 0;
+    }
+
+    /**
+     * Build the single-term bitset for a term on a background thread if it isn't already
+     * available.  Once it is built, createMask uses it for that term.  The most recently used
+     * bitsets are kept.
      *
-     * @param image The input RGB image.
-     * @param term  The term value to match.
-     * @return An output mask image.
+     * @param term The term index.
      */
-    public Mat createMask(Mat image, int term) {
-        Mat mappedImage = createMap(image);
-        if (blur > 1) {
-            Imgproc.medianBlur(mappedImage, mappedImage, blur);
+    public void prefetchTerm(int term) {
+        synchronized (termBitsets) {
+            if (term < 0 || term >= terms.size() || termBitsets.get(term) != null || pendingBitsets.contains(term)) {
+                return;
+            }
+            pendingBitsets.add(term);
         }
-        Mat mask = new Mat();
-        Core.compare(mappedImage, new Scalar(term), mask, Core.CMP_EQ);
-        return mask;
+        derivedExecutor.execute(() -> {
+            TermBitset bitset = null;
+            try {
+                long start = System.nanoTime();
+                TermLut map = getLoadedMap();
+                TermStats stats = getTermStats(term);
+                if (map != null && stats != null) {
+                    bitset = TermBitset.build(map, stats);
+                    Log.d(TAG, String.format("Built bitset for term %d of %s in %d ms",
+                            term, id, (System.nanoTime() - start) / 1000000));
+                }
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.e(TAG, "Failed to build bitset for term " + term + " of " + id, e);
+            }
+            synchronized (termBitsets) {
+                pendingBitsets.remove(term);
+                if (bitset != null) {
+                    termBitsets.put(term, bitset);
+                }
+            }
+        });
     }
 
     /**
-     * Given an input image in RGB color space, create a image that is single channel and has the
-     * value of the color term at each pixel.
+     * @param term The term index.
+     * @return true if the single-term bitset for the term has been built.
+     */
+    public boolean hasTermBitset(int term) {
+        return getTermBitset(term) != null;
+    }
+
+    private TermBitset getTermBitset(int term) {
+        synchronized (termBitsets) {
+            return termBitsets.get(term);
+        }
+    }
+
+    /**
+     * Build the approximate table on a background thread if it isn't already available.  This
+     * uses APPROXIMATE_BITS bits per channel, with each entry set to the most common term of the
+     * RGB values it covers.
+     */
+    public void prefetchApproximate() {
+        synchronized (this) {
+            if (approximateMap != null || approximatePending) {
+                return;
+            }
+            approximatePending = true;
+        }
+        derivedExecutor.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                TermLut map = getLoadedMap();
+                if (map != null) {
+                    TermLut approximate = TermLut.reduced(map, APPROXIMATE_BITS);
+                    approximateErrorRate = TermLut.differenceRate(map, approximate);
+                    approximateMap = approximate;
+                    Log.d(TAG, String.format("Built approximate table for %s in %d ms; %.2f%% of colors differ",
+                            id, (System.nanoTime() - start) / 1000000, approximateErrorRate * 100));
+                }
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.e(TAG, "Failed to build approximate table for " + id, e);
+            }
+            synchronized (this) {
+                approximatePending = false;
+            }
+        });
+    }
+
+    /**
+     * @return true if the approximate table has been built.
+     */
+    public boolean hasApproximate() {
+        return approximateMap != null;
+    }
+
+    /**
+     * Get the fraction of the RGB cube that the approximate table assigns a different term than
+     * the exact table.
+     *
+     * @return The misclassification rate from 0 to 1, or NaN if the approximate table hasn't
+     * been built.
+     */
+    public double getApproximateErrorRate() {
+        return approximateErrorRate;
+    }
+
+    /**
+     * Measure the fraction of pixels of an image that the approximate table assigns a different
+     * term than the exact table.  No smoothing is applied.
      *
      * @param image The input RGB image.
-     * @return An output mask image.
+     * @return The misclassification rate from 0 to 1, or NaN if the approximate table hasn't
+     * been built.
      */
-    public Mat createMap(Mat image) {
+    public double measureApproximateError(Mat image) {
+        TermLut map = getLoadedMap();
+        TermLut approximate = approximateMap;
+        if (map == null || approximate == null) {
+            return Double.NaN;
+        }
         int width = image.cols();
         int height = image.rows();
         byte[] rgbData = new byte[image.channels() * width * height];
-        if (blur < -1) {
-            Mat blurred = new Mat();
-            Imgproc.GaussianBlur(image, blurred, new Size(-blur, -blur), 0);
-            /* We could try other filters, but they operate on channels independently, so the results
-             * aren't what we desire:
-             *  Imgproc.blur(image, blurred, new Size(-blur, -blur));
-             *  Imgproc.medianBlur(image, blurred, -blur); */
-            blurred.get(0, 0, rgbData);
-        } else {
-            image.get(0, 0, rgbData);
+        image.get(0, 0, rgbData);
+        byte[] exact = new byte[width * height];
+        byte[] approx = new byte[width * height];
+        map.lookup(rgbData, 0, exact, 0, exact.length);
+        approximate.lookup(rgbData, 0, approx, 0, approx.length);
+        int differences = 0;
+        for (int i = 0; i < exact.length; i++) {
+            if (exact[i] != approx[i]) {
+                differences++;
+            }
         }
-        byte[] mapData = new byte[width * height];
+        return exact.length > 0 ? (double) differences / exact.length : 0;
+    }
 
-        int center = ((height / 2) * width + (width / 2));
-        IntStream.range(0, height).parallel().forEach(y -> {
-            int maxJ = (y + 1) * width;
-            for (int i = y * width * 3, j = y * width; j < maxJ; i += 3, j++) {
-                // Get RGB values (unsigned)
-                int r = rgbData[i] & 0xFF;
-                int g = rgbData[i + 1] & 0xFF;
-                int b = rgbData[i + 2] & 0xFF;
-                int index = (r << 16) | (g << 8) | b;
-                if (j == center && (r != lastCenterLog[0] || g != lastCenterLog[1] || b != lastCenterLog[2] || map[index] != lastCenterLog[3])) {
-                    Log.d(TAG, "Center " + " " + r + "," + g + "," + b + " " + map[index]);
-                    lastCenterLog[0] = r;
-                    lastCenterLog[1] = g;
-                    lastCenterLog[2] = b;
-                    lastCenterLog[3] = map[index];
+    /**
+     * Start building the table indexed by camera YUV values in the background if it isn't
+     * already built or being built.  Each (Y, U, V) entry holds the term of the RGB value the
+     * camera frame converts to, so frames can be classified from their YUV planes without
+     * converting them to RGB.
+     *
+     * @param onLoaded If not null, a callback to run on a background thread once the table is
+     *                 available.  If it is already available, this is not called.
+     */
+    public void prefetchYuv(Runnable onLoaded) {
+        synchronized (this) {
+            if (yuvMap != null || yuvPending) {
+                return;
+            }
+            yuvPending = true;
+        }
+        derivedExecutor.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                TermLut map = getLoadedMap();
+                if (map != null) {
+                    ByteBuffer data = TermLut.allocate(TermLut.ENTRIES);
+                    IntStream.range(0, 256).parallel().forEach(luma -> {
+                        for (int index = luma << 16, end = index + 65536; index < end; index++) {
+                            data.put(index, (byte) map.get(YuvFrame.toRgb(index)));
+                        }
+                    });
+                    TermLut yuv = TermLut.wrap(data, 8);
+                    if (storage == Storage.TWO_LEVEL) {
+                        TermLut twoLevel = TermLut.twoLevel(yuv);
+                        if (twoLevel != null) {
+                            yuv = twoLevel;
+                        } else {
+                            Log.w(TAG, "YUV table for " + id + " can't be stored as a two-level table; using a byte table");
+                        }
+                    }
+                    yuvMap = yuv;
+                    Log.d(TAG, String.format("Built YUV table for %s in %d ms",
+                            id, (System.nanoTime() - start) / 1000000));
                 }
-                mapData[j] = map[index];
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.e(TAG, "Failed to build YUV table for " + id, e);
+            }
+            synchronized (this) {
+                yuvPending = false;
+            }
+            if (yuvMap != null && onLoaded != null) {
+                onLoaded.run();
             }
         });
+    }
+
+    /**
+     * @return true if the table indexed by camera YUV values has been built.
+     */
+    public boolean hasYuvMap() {
+        return yuvMap != null;
+    }
+
+    /**
+     * @return The color space of the RGB values of the term map.
+     */
+    public ColorSpace getColorSpace() {
+        return colorSpace;
+    }
+
+    /**
+     * Check if images in a color space need a derived table.
+     *
+     * @param source The color space of an image or null for the term map's color space.
+     * @return true if a derived table is needed.  This is false for the term map's own color
+     * space and for color spaces that aren't RGB, which are treated as the term map's space.
+     */
+    private boolean needsDerivedMap(ColorSpace source) {
+        return source != null && source.getModel() == ColorSpace.Model.RGB && !source.equals(colorSpace);
+    }
+
+    /**
+     * Check if the term map can classify images in a color space without waiting.
+     *
+     * @param source The color space of the images or null for the term map's color space.
+     * @return true if the term map data and any derived table for the color space are loaded.
+     */
+    public boolean isLoaded(ColorSpace source) {
+        if (!isLoaded()) {
+            return false;
+        }
+        if (!needsDerivedMap(source)) {
+            return true;
+        }
+        synchronized (derivedMaps) {
+            return derivedMaps.containsKey(source.getId());
+        }
+    }
 
-        Mat mappedImage = new Mat(height, width, CvType.CV_8UC1);
-        mappedImage.put(0, 0, mapData);
-        return mappedImage;
+    /**
+     * Start building a table for images in another color space in the background if it isn't
+     * already built or being built.  The table composes the conversion from that color space to
+     * the term map's color space with the term lookup, so images in that space are classified
+     * with one lookup per pixel and no color conversion.  Tables are kept for each color space.
+     *
+     * @param source   The color space of the images.
+     * @param onLoaded If not null, a callback to run once the table is available.  If it is
+     *                 already available, this is called immediately; otherwise it is called on a
+     *                 background thread.
+     */
+    public void prefetchColorSpace(ColorSpace source, Runnable onLoaded) {
+        if (!needsDerivedMap(source)) {
+            prefetch(onLoaded);
+            return;
+        }
+        int key = source.getId();
+        synchronized (derivedMaps) {
+            if (!derivedMaps.containsKey(key)) {
+                List<Runnable> listeners = derivedListeners.get(key);
+                boolean start = listeners == null;
+                if (start) {
+                    listeners = new ArrayList<>();
+                    derivedListeners.put(key, listeners);
+                }
+                if (onLoaded != null && !listeners.contains(onLoaded)) {
+                    listeners.add(onLoaded);
+                }
+                if (start) {
+                    derivedLoading.put(key, derivedExecutor.submit(() -> buildDerivedMap(source)));
+                }
+                return;
+            }
+        }
+        if (onLoaded != null) {
+            onLoaded.run();
+        }
+    }
+
+    private void buildDerivedMap(ColorSpace source) {
+        int key = source.getId();
+        TermLut derived = null;
+        try {
+            long start = System.nanoTime();
+            TermLut map = getLoadedMap();
+            if (map != null) {
+                ColorSpace.Connector connector = ColorSpace.connect(source, colorSpace);
+                ByteBuffer data = TermLut.allocate(TermLut.ENTRIES);
+                // Every entry is converted, so the table is exact; the entries are split into
+                // tiles on the shared tile pool
+                TileProcessor.run(TermLut.ENTRIES, (first, last) -> {
+                    float[] value = new float[3];
+                    for (int index = first; index < last; index++) {
+                        value[0] = (index >>> 16) / 255f;
+                        value[1] = ((index >> 8) & 0xFF) / 255f;
+                        value[2] = (index & 0xFF) / 255f;
+                        connector.transform(value);
+                        int mr = Math.round(Math.max(0, Math.min(1, value[0])) * 255);
+                        int mg = Math.round(Math.max(0, Math.min(1, value[1])) * 255);
+                        int mb = Math.round(Math.max(0, Math.min(1, value[2])) * 255);
+                        data.put(index, (byte) map.get((mr << 16) | (mg << 8) | mb));
+                    }
+                });
+                derived = TermLut.wrap(data, 8);
+                if (storage == Storage.TWO_LEVEL) {
+                    TermLut twoLevel = TermLut.twoLevel(derived);
+                    if (twoLevel != null) {
+                        derived = twoLevel;
+                    } else {
+                        Log.w(TAG, "Table for " + source.getName() + " images with " + id +
+                                " can't be stored as a two-level table; using a byte table");
+                    }
+                }
+                Log.d(TAG, String.format("Built table for %s images with %s in %d ms",
+                        source.getName(), id, (System.nanoTime() - start) / 1000000));
+            }
+        } catch (RuntimeException | OutOfMemoryError e) {
+            Log.e(TAG, "Failed to build table for " + source.getName() + " images with " + id, e);
+        }
+        List<Runnable> listeners;
+        synchronized (derivedMaps) {
+            listeners = derivedListeners.remove(key);
+            derivedLoading.remove(key);
+            if (derived == null) {
+                return;
+            }
+            derivedMaps.put(key, derived);
+        }
+        if (listeners != null) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Get the table to use for images in a color space, waiting for it to be built if necessary.
+     *
+     * @param source The color space of the images or null for the term map's color space.
+     * @return The derived table, or null if the exact table of the term map should be used.
+     */
+    private TermLut getDerivedMap(ColorSpace source) {
+        if (!needsDerivedMap(source)) {
+            return null;
+        }
+        int key = source.getId();
+        prefetchColorSpace(source, null);
+        Future<?> pending;
+        synchronized (derivedMaps) {
+            pending = derivedLoading.get(key);
+        }
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to build table for " + source.getName() + " images with " + id, e);
+            }
+        }
+        synchronized (derivedMaps) {
+            TermLut derived = derivedMaps.get(key);
+            if (derived == null) {
+                throw new IllegalStateException("Term map " + id + " could not be built for " + source.getName());
+            }
+            return derived;
+        }
+    }
+
+    /**
+     * Get the statistics of the RGB values that map to a term, waiting for the term map to load
+     * if necessary.  The statistics of every term are computed the first time any are needed.
+     *
+     * @param term The term index.
+     * @return The statistics or null if the term map could not be loaded or the term is out of
+     * range.
+     */
+    public TermStats getTermStats(int term) {
+        TermStats[] stats = termStats;
+        if (stats == null) {
+            TermLut map = getLoadedMap();
+            if (map == null) {
+                return null;
+            }
+            synchronized (statsLock) {
+                stats = termStats;
+                if (stats == null) {
+                    long start = System.nanoTime();
+                    stats = TermStats.compute(map, terms.size());
+                    Log.d(TAG, String.format("Computed term statistics for %s in %d ms",
+                            id, (System.nanoTime() - start) / 1000000));
+                    termStats = stats;
+                }
+            }
+        }
+        return term >= 0 && term < stats.length ? stats[term] : null;
+    }
+
+    /**
+     * Get the blur value used to reduce variations.
+     *
+     * @return The current blur value.
+     * @noinspection unused
+     */
+    public int getBlur() {
+        return blur;
+    }
+
+    /**
+     * Set the blur value used to reduce variations.
+     *
+     * @param blur Either 0 or an odd number.  If negative, the blur is applied BEFORE the color
+     *             terms.  If positive, it is applied AFTER the color terms, setting each pixel
+     *             to the most common term in the window around it.
+     * @noinspection unused
+     */
+    public void setBlur(int blur) {
+        this.blur = blur;
+    }
+
+    /**
+     * Get the factor by which images are reduced before masks are created.
+     *
+     * @return 1, 2, or 4, or 0 for automatic.
+     */
+    public int getDownscale() {
+        return downscale;
+    }
+
+    /**
+     * Set the factor by which images are reduced before masks are created.  When reduced, the
+     * terms are looked up and smoothed on the smaller image, the mask is scaled back to full
+     * size, and only pixels near the boundaries of the mask are looked up again at full
+     * resolution.
+     *
+     * @param downscale 1 to work at full resolution, 2 or 4 to reduce by that factor, or 0 to
+     *                  pick a factor from the image size so large images are reduced to
+     *                  roughly VGA.
+     */
+    public void setDownscale(int downscale) {
+        if (downscale != 0 && downscale != 1 && downscale != 2 && downscale != 4) {
+            throw new IllegalArgumentException("Unsupported downscale factor: " + downscale);
+        }
+        this.downscale = downscale;
+    }
+
+    /**
+     * Get the factor to reduce an image by.  When parts of an image are processed separately,
+     * this should be found once for the whole image so that each part is reduced the same way.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @return 1, 2, or 4.
+     */
+    int getDownscale(int width, int height) {
+        if (downscale != 0) {
+            return downscale;
+        }
+        return getAutoDownscale(width, height);
+    }
+
+    /**
+     * Pick the factor to reduce an image by from its size, so that large images are reduced to
+     * roughly VGA.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @return 1, 2, or 4.
+     */
+    static int getAutoDownscale(int width, int height) {
+        int factor = 1;
+        while (factor < 4 && (long) (width / (factor * 2)) * (height / (factor * 2)) >= AUTO_DOWNSCALE_PIXELS) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Given an input image in RGB color space, create a mask image that is single channel and has
+     * either 0 or 255 at each pixel.  Pixels outside of the term's RGB bounding box are rejected
+     * without a table lookup.
+     *
+     * @param image The input RGB image.
+     * @param term  The term value to match.
+     * @return An output mask image.
+     */
+    public Mat createMask(Mat image, int term) {
+        return createMask(image, term, false);
+    }
+
+    /**
+     * Given an input image in RGB color space, create a mask image that is single channel and has
+     * either 0 or 255 at each pixel.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it instead of the
+     *                    exact table.  If it isn't available yet, it is built in the background
+     *                    and the exact table is used.
+     * @return An output mask image.
+     */
+    public Mat createMask(Mat image, int term, boolean approximate) {
+        return createMask(image, term, approximate, null);
+    }
+
+    /**
+     * Given an input image in RGB color space, create a mask image that is single channel and has
+     * either 0 or 255 at each pixel.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it instead of the
+     *                    exact table.  If it isn't available yet, it is built in the background
+     *                    and the exact table is used.  This only applies to images in the term
+     *                    map's color space.
+     * @param colorSpace  The color space of the image or null for the term map's color space.  If
+     *                    this needs a derived table that isn't built yet, this blocks until it is.
+     * @return An output mask image.
+     */
+    public Mat createMask(Mat image, int term, boolean approximate, ColorSpace colorSpace) {
+        return createMask(image, term, approximate, colorSpace, new Mat());
+    }
+
+    /**
+     * Given an input image in RGB color space, create a mask image that is single channel and has
+     * either 0 or 255 at each pixel.  Working buffers are reused between calls on the same thread,
+     * so if the destination is also reused, repeated calls with images of the same size don't
+     * allocate image data.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it instead of the
+     *                    exact table.  This only applies to images in the term map's color space.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.  This is reallocated if it isn't a single channel
+     *                    image of the same size as the input.
+     * @return The destination mask image.
+     */
+    public Mat createMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask) {
+        return createMask(image, term, approximate, colorSpace, mask, getDownscale(image.cols(), image.rows()), null);
+    }
+
+    /**
+     * Create a mask, reducing the image by a specific factor.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.
+     * @param factor      The reduction factor from getDownscale.
+     * @param coverage    Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask, int factor,
+                   TermCoverage coverage) {
+        return createMask(image, term, approximate, colorSpace, mask, factor, blur, smoothing, coverage);
+    }
+
+    /**
+     * Create a mask with specific smoothing settings rather than those of the term map, so that
+     * callers with their own settings don't have to change the shared term map.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.
+     * @param factor      The reduction factor from getDownscale.
+     * @param blur        The blur, as for setBlur.
+     * @param smoothing   The smoothing method, as for setSmoothing.
+     * @param coverage    Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask, int factor,
+                   int blur, Smoothing smoothing, TermCoverage coverage) {
+        return createMask(image, term, approximate, colorSpace, mask, factor, blur, smoothing, false, coverage);
+    }
+
+    /**
+     * Create a mask from an RGB image.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.
+     * @param factor      The reduction factor from getDownscale.
+     * @param blur        The blur, as for setBlur.
+     * @param smoothing   The smoothing method, as for setSmoothing.
+     * @param fused       If true and the image isn't reduced, write the mask without an image of
+     *                    the terms.
+     * @param coverage    Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    private Mat createMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask, int factor,
+                           int blur, Smoothing smoothing, boolean fused, TermCoverage coverage) {
+        TermLut map = getLoadedMap();
+        if (map == null) {
+            throw new IllegalStateException("Term map " + id + " could not be loaded");
+        }
+        TermStats stats = null;
+        TermBitset bitset = null;
+        TermLut derivedMap = getDerivedMap(colorSpace);
+        TermLut approximateMap = approximate && derivedMap == null ? this.approximateMap : null;
+        if (approximate && derivedMap == null && approximateMap == null) {
+            prefetchApproximate();
+        }
+        if (derivedMap != null) {
+            map = derivedMap;
+        } else if (approximateMap != null) {
+            map = approximateMap;
+        } else if (factor == 1) {
+            // The statistics and bitsets only describe the exact table.  Until they are built
+            // in the background by prefetchTerm, every pixel is looked up.
+            TermStats[] allStats = termStats;
+            stats = allStats != null && term >= 0 && term < allStats.length ? allStats[term] : null;
+            bitset = getTermBitset(term);
+        }
+        Scratch buffers = scratch.get();
+        if (factor > 1) {
+            return createReducedMask(map, image, term, factor, blur, smoothing, buffers, mask, coverage);
+        }
+        int width = image.cols();
+        int height = image.rows();
+        ByteBuffer rgbData = getRgbData(image, buffers, blur, smoothing);
+        if (blur > 1) {
+            // The mode of a window is one of its values, so if no pixel is the term, no
+            // smoothed pixel can be either
+            if (stats != null && coverage == null && !anyMatch(rgbData, width * height, stats, bitset)) {
+                mask.create(height, width, CvType.CV_8UC1);
+                mask.setTo(Scalar.all(0));
+                return mask;
+            }
+            if (fused) {
+                // The terms are looked up a row at a time for the rows of each band's window
+                TermLut lut = map;
+                DirectMat output = getOutput(mask, width, height, buffers);
+                ModeFilter.apply((row, labels) -> lookupRow(lut, rgbData, row * width, width, labels),
+                        width, height, output, blur, this.terms.size(), term, coverage);
+                return copyOutput(output, mask);
+            }
+            DirectMat terms = buffers.getTerms(width, height);
+            createMap(map, rgbData, width, height, terms, coverage);
+            DirectMat output = getOutput(mask, width, height, buffers);
+            ModeFilter.apply(terms, output, blur, this.terms.size(), term);
+            return copyOutput(output, mask);
+        }
+        DirectMat output = getOutput(mask, width, height, buffers);
+        if (coverage != null) {
+            // Every pixel has to be looked up to be counted
+            stats = null;
+            bitset = null;
+        }
+        fillMask(map, term, stats, bitset, rgbData, width * height, output.getBuffer(), coverage);
+        return copyOutput(output, mask);
+    }
+
+    /**
+     * Given an input image in RGB color space, create a mask image that is single channel and has
+     * either 0 or 255 at each pixel in a single pass, without making an image of the terms.  When
+     * the blur is more than 1, each band of rows looks up only the rows of its window and finds
+     * the most common term around each pixel from those.  The mask is the same as createMask.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it instead of the
+     *                    exact table.  This only applies to images in the term map's color space.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.  This is reallocated if it isn't a single channel
+     *                    image of the same size as the input.
+     * @return The destination mask image.
+     */
+    public Mat createFusedMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask) {
+        return createFusedMask(image, term, approximate, colorSpace, mask, getDownscale(image.cols(), image.rows()), null);
+    }
+
+    /**
+     * Create a mask in a single pass, reducing the image by a specific factor.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.
+     * @param factor      The reduction factor from getDownscale.
+     * @param coverage    Either null or counts of the terms that are added to.  Counting looks
+     *                    up every pixel, rather than only those that might be the term.
+     * @return The destination mask image.
+     */
+    Mat createFusedMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask, int factor,
+                        TermCoverage coverage) {
+        return createFusedMask(image, term, approximate, colorSpace, mask, factor, blur, smoothing, coverage);
+    }
+
+    /**
+     * Create a mask in a single pass with specific smoothing settings.
+     *
+     * @param image       The input RGB image.
+     * @param term        The term value to match.
+     * @param approximate If true and the approximate table is available, use it.
+     * @param colorSpace  The color space of the image or null for the term map's color space.
+     * @param mask        The destination.
+     * @param factor      The reduction factor from getDownscale.
+     * @param blur        The blur, as for setBlur.
+     * @param smoothing   The smoothing method, as for setSmoothing.
+     * @param coverage    Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createFusedMask(Mat image, int term, boolean approximate, ColorSpace colorSpace, Mat mask, int factor,
+                        int blur, Smoothing smoothing, TermCoverage coverage) {
+        return createMask(image, term, approximate, colorSpace, mask, factor, blur, smoothing, true, coverage);
+    }
+
+    /**
+     * Look up the terms of a run of pixels.
+     *
+     * @param map     The table.
+     * @param rgbData Interleaved 8-bit RGB data.
+     * @param start   The first pixel.
+     * @param count   The number of pixels.
+     * @param dest    The destination for the terms, starting at 0.
+     */
+    private static void lookupRow(TermLut map, ByteBuffer rgbData, int start, int count, byte[] dest) {
+        byte[] rgbStage = TermLut.getStage()[0];
+        ByteBuffer src = rgbData.duplicate();
+        src.position(start * 3);
+        for (int done = 0; done < count; done += TermLut.STAGE_PIXELS) {
+            int length = Math.min(TermLut.STAGE_PIXELS, count - done);
+            src.get(rgbStage, 0, length * 3);
+            map.lookup(rgbStage, 0, dest, done, length);
+        }
+    }
+
+    /**
+     * Set each pixel of a mask to 255 if it is a term and 0 otherwise.
+     *
+     * @param map      The table.
+     * @param term     The term value to match.
+     * @param stats    Either null or the term statistics of the table.  Pixels outside of the
+     *                 term's bounding box aren't looked up.
+     * @param bitset   Either null or the term bitset of the table.  If present, this is used
+     *                 instead of the table for pixels in the bounding box.
+     * @param rgbData  Interleaved 8-bit RGB data.
+     * @param pixels   The number of pixels.
+     * @param maskData The destination with one byte per pixel.
+     * @param coverage Either null or counts of the terms that are added to.  This is only used
+     *                 if stats is null.
+     * @return true if any pixel is the term.
+     */
+    private static boolean fillMask(TermLut map, int term, TermStats stats, TermBitset bitset,
+                                    ByteBuffer rgbData, int pixels, ByteBuffer maskData, TermCoverage coverage) {
+        if (stats != null && stats.isEmpty()) {
+            TileProcessor.run(pixels, (start, end) -> {
+                for (int x = start; x < end; x++) {
+                    maskData.put(x, (byte) 0);
+                }
+            });
+            return false;
+        }
+        AtomicBoolean matched = new AtomicBoolean();
+        TermCoverage.Parts parts = coverage != null ? coverage.newParts() : null;
+        TileProcessor.run(pixels, (start, end) -> {
+            byte[][] stage = TermLut.getStage();
+            byte[] rgbStage = stage[0];
+            byte[] maskStage = stage[1];
+            ByteBuffer src = rgbData.duplicate();
+            ByteBuffer dst = maskData.duplicate();
+            src.position(start * 3);
+            dst.position(start);
+            int[] counts = parts != null ? parts.newPart() : null;
+            boolean any = false;
+            for (int x = start; x < end; x += TermLut.STAGE_PIXELS) {
+                int length = Math.min(TermLut.STAGE_PIXELS, end - x);
+                src.get(rgbStage, 0, length * 3);
+                if (stats == null) {
+                    map.lookup(rgbStage, 0, maskStage, 0, length);
+                    if (counts != null) {
+                        TermLut.count(maskStage, length, counts);
+                    }
+                    for (int j = 0; j < length; j++) {
+                        boolean match = maskStage[j] == term;
+                        maskStage[j] = match ? (byte) 255 : 0;
+                        any |= match;
+                    }
+                } else {
+                    for (int j = 0, i = 0; j < length; j++, i += 3) {
+                        int r = rgbStage[i] & 0xFF;
+                        int g = rgbStage[i + 1] & 0xFF;
+                        int b = rgbStage[i + 2] & 0xFF;
+                        // Pixels outside of the term's bounding box don't need a table lookup
+                        boolean match = stats.contains(r, g, b);
+                        if (match) {
+                            int index = (r << 16) | (g << 8) | b;
+                            match = bitset != null ? bitset.contains(index) : map.get(index) == term;
+                        }
+                        maskStage[j] = match ? (byte) 255 : 0;
+                        any |= match;
+                    }
+                }
+                dst.put(maskStage, 0, length);
+            }
+            if (any) {
+                matched.set(true);
+            }
+        });
+        if (parts != null) {
+            parts.merge();
+        }
+        return matched.get();
+    }
+
+    /**
+     * Check if any pixel could map to a term.
+     *
+     * @param rgbData Interleaved 8-bit RGB data.
+     * @param pixels  The number of pixels.
+     * @param stats   The term statistics.
+     * @param bitset  The term bitset or null to only check the term's bounding box.
+     * @return true if any pixel could map to the term.
+     */
+    private static boolean anyMatch(ByteBuffer rgbData, int pixels, TermStats stats, TermBitset bitset) {
+        if (stats.isEmpty()) {
+            return false;
+        }
+        byte[] rgbStage = TermLut.getStage()[0];
+        ByteBuffer src = rgbData.duplicate();
+        src.position(0);
+        for (int done = 0; done < pixels; done += TermLut.STAGE_PIXELS) {
+            int length = Math.min(TermLut.STAGE_PIXELS, pixels - done);
+            src.get(rgbStage, 0, length * 3);
+            for (int i = 0; i < length * 3; i += 3) {
+                int r = rgbStage[i] & 0xFF;
+                int g = rgbStage[i + 1] & 0xFF;
+                int b = rgbStage[i + 2] & 0xFF;
+                if (stats.contains(r, g, b) && (bitset == null || bitset.contains((r << 16) | (g << 8) | b))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the RGB data of an image, applying the pre-lookup smoothing if there is any.  If the
+     * image is a DirectMat and isn't smoothed, its own memory is used.  Otherwise, the data is
+     * in a working buffer, so it is only valid until the next call on the same thread.
+     *
+     * @param image     The input RGB image.
+     * @param buffers   Working buffers for the current thread.
+     * @param blur      The blur.  The image is smoothed if this is less than -1.
+     * @param smoothing The smoothing method.
+     * @return Interleaved 8-bit RGB data with no padding between rows.
+     */
+    private ByteBuffer getRgbData(Mat image, Scratch buffers, int blur, Smoothing smoothing) {
+        if (blur < -1) {
+            DirectMat blurred = buffers.getRgb(image);
+            smooth(image, blurred, -blur, smoothing, buffers);
+            /* A median filter operates on channels independently, so the results aren't what we
+             * desire:
+             *  Imgproc.medianBlur(image, blurred, -blur); */
+            return blurred.getBuffer();
+        }
+        return getRgbData(image, buffers);
+    }
+
+    /**
+     * Get the RGB data of an image without smoothing it.
+     *
+     * @param image   The input RGB image.
+     * @param buffers Working buffers for the current thread.
+     * @return Interleaved 8-bit RGB data with no padding between rows.
+     */
+    private ByteBuffer getRgbData(Mat image, Scratch buffers) {
+        if (image instanceof DirectMat && ((DirectMat) image).isDirect()) {
+            return ((DirectMat) image).getBuffer();
+        }
+        // Other images, including submatrices whose rows aren't adjacent in memory, are copied
+        DirectMat rgb = buffers.getRgb(image);
+        image.copyTo(rgb);
+        return rgb.getBuffer();
+    }
+
+    /**
+     * Smooth an image.
+     *
+     * @param image     The input RGB image.
+     * @param dest      The destination of the same size and type.  This may be the image.
+     * @param size      The odd width of the Gaussian blur to match.
+     * @param smoothing The smoothing method.
+     * @param buffers   Working buffers for the current thread.
+     */
+    private static void smooth(Mat image, DirectMat dest, int size, Smoothing smoothing, Scratch buffers) {
+        switch (smoothing) {
+            case BOX: {
+                int width = getBoxWidth(size);
+                Size box = new Size(width, width);
+                Imgproc.blur(image, dest, box);
+                Imgproc.blur(dest, dest, box);
+                break;
+            }
+            case PYRAMID: {
+                DirectMat half = buffers.getHalf(Math.max(1, image.rows() / 2), Math.max(1, image.cols() / 2), image.type());
+                Imgproc.resize(image, half, half.size(), 0, 0, Imgproc.INTER_AREA);
+                int halfSize = (size / 2) | 1;
+                if (halfSize > 1) {
+                    Imgproc.GaussianBlur(half, half, new Size(halfSize, halfSize), 0);
+                }
+                Imgproc.resize(half, dest, image.size(), 0, 0, Imgproc.INTER_LINEAR);
+                break;
+            }
+            default:
+                Imgproc.GaussianBlur(image, dest, new Size(size, size), 0);
+                break;
+        }
+    }
+
+    /**
+     * Get the width of the box blur passes that stand in for a Gaussian blur.
+     *
+     * @param size The size of the Gaussian blur.
+     * @return An odd width of at least 3.
+     */
+    private static int getBoxWidth(int size) {
+        // Two box passes of width w spread like a Gaussian with sigma^2 = (w^2 - 1) / 6
+        double sigma = 0.3 * ((size - 1) * 0.5 - 1) + 0.8;
+        return Math.max(3, (int) Math.round(Math.sqrt(6 * sigma * sigma + 1)) | 1);
+    }
+
+    /**
+     * Get how far from a pixel the smoothing before the lookup reads.
+     *
+     * @param size      The smoothing size.
+     * @param smoothing The smoothing method.
+     * @return A distance in pixels.
+     */
+    private static int getSmoothingReach(int size, Smoothing smoothing) {
+        switch (smoothing) {
+            case BOX:
+                return 2 * (getBoxWidth(size) / 2);
+            case PYRAMID:
+                // Halving reads one more pixel, the blur reads half its size in half pixels, and
+                // scaling back up reads one more half pixel
+                return 1 + 2 * (((size / 2) | 1) / 2) + 2;
+            default:
+                return size / 2;
+        }
+    }
+
+    /**
+     * Get how far from a pixel its value in a term mask can depend on other pixels, so that a
+     * part of an image extended by this much gives the same mask as the whole image.
+     *
+     * @param blur      The blur setting.
+     * @param smoothing The smoothing method used when the blur is negative.
+     * @param factor    The reduction factor from getDownscale.
+     * @return A distance in full resolution pixels.
+     */
+    static int getReach(int blur, Smoothing smoothing, int factor) {
+        if (factor <= 1) {
+            if (blur > 1) {
+                return blur / 2;
+            }
+            return blur < -1 ? getSmoothingReach(-blur, smoothing) : 0;
+        }
+        int smallReach = 0;
+        if (blur > 1) {
+            smallReach = Math.max(3, (blur / factor) | 1) / 2;
+        } else if (blur < -1) {
+            smallReach = getSmoothingReach(Math.max(3, (-blur / factor) | 1), smoothing);
+        }
+        // Pixels of a block share a reduced pixel, and the edges of the reduced mask, which are
+        // looked up again, reach one reduced pixel further
+        return (smallReach + 1) * factor + factor - 1;
+    }
+
+    /**
+     * Get the image to write a single channel result into.  This is the destination itself if
+     * it is a DirectMat of the right size, otherwise a working image that is never the working
+     * terms image.
+     *
+     * @param dest    The destination.
+     * @param width   The image width.
+     * @param height  The image height.
+     * @param buffers Working buffers for the current thread.
+     * @return An image to write into.
+     */
+    private static DirectMat getOutput(Mat dest, int width, int height, Scratch buffers) {
+        if (dest instanceof DirectMat) {
+            DirectMat direct = (DirectMat) dest;
+            if (direct.cols() == width && direct.rows() == height && direct.type() == CvType.CV_8UC1 && direct.isDirect()) {
+                return direct;
+            }
+        }
+        return buffers.getOutput(width, height);
+    }
+
+    /**
+     * Copy a result from getOutput to the destination if it was written to a working image.
+     *
+     * @param output The image from getOutput.
+     * @param dest   The destination.
+     * @return The destination.
+     */
+    private static Mat copyOutput(DirectMat output, Mat dest) {
+        if (output != dest) {
+            output.copyTo(dest);
+        }
+        return dest;
+    }
+
+    /**
+     * Given an input image in RGB color space, create a image that is single channel and has the
+     * value of the color term at each pixel.  If the term map data isn't loaded yet, this blocks
+     * until it is.
+     *
+     * @param image The input RGB image.
+     * @return An output mask image.
+     */
+    public Mat createMap(Mat image) {
+        return createMap(image, (ColorSpace) null);
+    }
+
+    /**
+     * Given an input image in RGB color space, create a image that is single channel and has the
+     * value of the color term at each pixel.  If the term map data or a needed derived table
+     * isn't available yet, this blocks until it is.
+     *
+     * @param image      The input RGB image.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @return An output mask image.
+     */
+    public Mat createMap(Mat image, ColorSpace colorSpace) {
+        return createMap(image, colorSpace, new Mat());
+    }
+
+    /**
+     * Given an input image in RGB color space, create a image that is single channel and has the
+     * value of the color term at each pixel.  Working buffers are reused between calls on the
+     * same thread, so if the destination is also reused, repeated calls with images of the same
+     * size don't allocate image data.  If the image and destination are both DirectMats, the
+     * lookup reads and writes their memory without copying.
+     *
+     * @param image      The input RGB image.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @param dest       The destination.  This is reallocated if it isn't a single channel image
+     *                   of the same size as the input.
+     * @return The destination image.
+     */
+    public Mat createMap(Mat image, ColorSpace colorSpace, Mat dest) {
+        return createMap(image, colorSpace, dest, null);
+    }
+
+    /**
+     * Given an input image in RGB color space, create a image that is single channel and has the
+     * value of the color term at each pixel, counting the pixels of each term during the lookup.
+     *
+     * @param image      The input RGB image.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @param dest       The destination.  This is reallocated if it isn't a single channel image
+     *                   of the same size as the input.
+     * @param coverage   Either null or counts of the terms that are added to.
+     * @return The destination image.
+     */
+    public Mat createMap(Mat image, ColorSpace colorSpace, Mat dest, TermCoverage coverage) {
+        return createMap(image, colorSpace, dest, blur, smoothing, coverage);
+    }
+
+    /**
+     * Create an image of the terms with specific smoothing settings.  Only pre-lookup smoothing
+     * applies to an image of the terms.
+     *
+     * @param image      The input RGB image.
+     * @param colorSpace The color space of the image or null for the term map's color space.
+     * @param dest       The destination.
+     * @param blur       The blur, as for setBlur.
+     * @param smoothing  The smoothing method, as for setSmoothing.
+     * @param coverage   Either null or counts of the terms that are added to.
+     * @return The destination image.
+     */
+    Mat createMap(Mat image, ColorSpace colorSpace, Mat dest, int blur, Smoothing smoothing, TermCoverage coverage) {
+        TermLut map = getLoadedMap();
+        if (map == null) {
+            throw new IllegalStateException("Term map " + id + " could not be loaded");
+        }
+        TermLut derivedMap = getDerivedMap(colorSpace);
+        Scratch buffers = scratch.get();
+        int width = image.cols();
+        int height = image.rows();
+        ByteBuffer rgbData = getRgbData(image, buffers, blur, smoothing);
+        DirectMat output = getOutput(dest, width, height, buffers);
+        createMap(derivedMap != null ? derivedMap : map, rgbData, width, height, output, coverage);
+        return copyOutput(output, dest);
+    }
+
+    private void createMap(TermLut map, ByteBuffer rgbData, int width, int height, DirectMat dest,
+                           TermCoverage coverage) {
+        ByteBuffer mapData = dest.getBuffer();
+        TermCoverage.Parts parts = coverage != null ? coverage.newParts() : null;
+        TileProcessor.run(width * height, (start, end) ->
+                map.lookup(rgbData, start * 3, mapData, start, end - start, parts != null ? parts.newPart() : null));
+        if (parts != null) {
+            parts.merge();
+        }
+        logCenter(rgbData, mapData, width, height);
+    }
+
+    /**
+     * Log the color and term of the center pixel when either changes.
+     *
+     * @param rgbData Interleaved 8-bit RGB data.
+     * @param mapData The term of each pixel.
+     * @param width   The image width.
+     * @param height  The image height.
+     */
+    private void logCenter(ByteBuffer rgbData, ByteBuffer mapData, int width, int height) {
+        int center = ((height / 2) * width + (width / 2));
+        if (center >= width * height) {
+            return;
+        }
+        int r = rgbData.get(center * 3) & 0xFF;
+        int g = rgbData.get(center * 3 + 1) & 0xFF;
+        int b = rgbData.get(center * 3 + 2) & 0xFF;
+        byte term = mapData.get(center);
+        synchronized (lastCenterLog) {
+            if (r != lastCenterLog[0] || g != lastCenterLog[1] || b != lastCenterLog[2] || term != lastCenterLog[3]) {
+                Log.d(TAG, "Center " + " " + r + "," + g + "," + b + " " + term);
+                lastCenterLog[0] = r;
+                lastCenterLog[1] = g;
+                lastCenterLog[2] = b;
+                lastCenterLog[3] = term;
+            }
+        }
+    }
+
+    /**
+     * Create a mask by looking up terms on a reduced image.  Any smoothing is done at the
+     * reduced size, the mask is scaled up, and pixels within one reduced pixel of a boundary of
+     * the mask are looked up again from the full resolution image.
+     *
+     * @param map      The table.
+     * @param image    The input RGB image.
+     * @param term     The term value to match.
+     * @param factor    The reduction factor.
+     * @param blur      The blur, as for setBlur.
+     * @param smoothing The smoothing method, as for setSmoothing.
+     * @param buffers   Working buffers for the current thread.
+     * @param mask      The destination.
+     * @param coverage  Either null or counts of the terms that are added to.  The reduced image
+     *                  is counted.
+     * @return The destination mask image.
+     */
+    private Mat createReducedMask(TermLut map, Mat image, int term, int factor, int blur, Smoothing smoothing,
+                                  Scratch buffers, Mat mask, TermCoverage coverage) {
+        int width = image.cols();
+        int height = image.rows();
+        int smallWidth = Math.max(1, width / factor);
+        int smallHeight = Math.max(1, height / factor);
+        DirectMat small = buffers.getSmall(smallHeight, smallWidth, image.type());
+        Imgproc.resize(image, small, new Size(smallWidth, smallHeight), 0, 0, Imgproc.INTER_AREA);
+        DirectMat smallTerms = buffers.getSmallTerms(smallWidth, smallHeight);
+        if (blur < -1) {
+            smooth(small, small, Math.max(3, (-blur / factor) | 1), smoothing, buffers);
+        }
+        createMap(map, small.getBuffer(), smallWidth, smallHeight, smallTerms, coverage);
+        ByteBuffer rgbData = getRgbData(image, buffers);
+        return refineReducedMask(smallTerms, term, factor, blur, width, height, buffers, mask, index -> {
+            int i = index * 3;
+            return map.get(((rgbData.get(i) & 0xFF) << 16) | ((rgbData.get(i + 1) & 0xFF) << 8) | (rgbData.get(i + 2) & 0xFF));
+        });
+    }
+
+    /**
+     * Smooth the terms of a reduced image, scale the mask of one term up to full size, and look
+     * up pixels near the boundaries of the mask again.
+     *
+     * @param smallTerms The terms of the reduced image.
+     * @param term       The term value to match.
+     * @param factor     The reduction factor.
+     * @param blur       The blur, as for setBlur.
+     * @param width      The full image width.
+     * @param height     The full image height.
+     * @param buffers    Working buffers for the current thread.
+     * @param mask       The destination.
+     * @param exactTerm  A function returning the term of a full resolution pixel given its index.
+     * @return The destination mask image.
+     */
+    private Mat refineReducedMask(DirectMat smallTerms, int term, int factor, int blur, int width, int height,
+                                  Scratch buffers, Mat mask, IntUnaryOperator exactTerm) {
+        DirectMat smallMask = buffers.getSmallMask(smallTerms.cols(), smallTerms.rows());
+        if (blur > 1) {
+            // Scale the window with the image, but keep some smoothing
+            ModeFilter.apply(smallTerms, smallMask, Math.max(3, (blur / factor) | 1), terms.size(), term);
+        } else {
+            Core.compare(smallTerms, new Scalar(term), smallMask, Core.CMP_EQ);
+        }
+        Imgproc.morphologyEx(smallMask, buffers.smallEdges, Imgproc.MORPH_GRADIENT, buffers.getEdgeKernel());
+        Size size = new Size(width, height);
+        DirectMat output = getOutput(mask, width, height, buffers);
+        Imgproc.resize(smallMask, output, size, 0, 0, Imgproc.INTER_NEAREST);
+        DirectMat edges = buffers.getEdges(width, height);
+        Imgproc.resize(buffers.smallEdges, edges, size, 0, 0, Imgproc.INTER_NEAREST);
+        ByteBuffer edgeData = edges.getBuffer();
+        ByteBuffer maskData = output.getBuffer();
+        TileProcessor.run(width * height, (start, end) -> {
+            byte[] edgeStage = TermLut.getStage()[1];
+            ByteBuffer src = edgeData.duplicate();
+            src.position(start);
+            for (int pixel = start; pixel < end; pixel += TermLut.STAGE_PIXELS) {
+                int length = Math.min(TermLut.STAGE_PIXELS, end - pixel);
+                src.get(edgeStage, 0, length);
+                for (int j = 0; j < length; j++) {
+                    if (edgeStage[j] != 0) {
+                        maskData.put(pixel + j, exactTerm.applyAsInt(pixel + j) == term ? (byte) 255 : 0);
+                    }
+                }
+            }
+        });
+        return copyOutput(output, mask);
+    }
+
+    /**
+     * Given a camera frame, create an image that is single channel and has the value of the
+     * color term at each pixel, looking up the terms directly from the YUV values.  Pre-lookup
+     * smoothing is not applied.
+     *
+     * @param frame The camera frame.
+     * @param dest  The destination.  This is reallocated if it isn't a single channel image of
+     *              the same size as the frame.
+     * @return The destination image.
+     * @throws IllegalStateException if the YUV table hasn't been built.
+     */
+    public Mat createMap(YuvFrame frame, Mat dest) {
+        TermLut yuv = yuvMap;
+        if (yuv == null) {
+            throw new IllegalStateException("YUV table for " + id + " is not built");
+        }
+        DirectMat output = getOutput(dest, frame.getWidth(), frame.getHeight(), scratch.get());
+        createMap(yuv, frame, output);
+        return copyOutput(output, dest);
+    }
+
+    /**
+     * Given a camera frame, create a mask image that is single channel and has either 0 or 255
+     * at each pixel, looking up the terms directly from the YUV values.  Pre-lookup smoothing is
+     * not applied.
+     *
+     * @param frame The camera frame.
+     * @param term  The term value to match.
+     * @param mask  The destination.
+     * @return The destination mask image.
+     * @throws IllegalStateException if the YUV table hasn't been built.
+     */
+    public Mat createMask(YuvFrame frame, int term, Mat mask) {
+        return createMask(frame, term, mask, getDownscale(frame.getWidth(), frame.getHeight()), null);
+    }
+
+    /**
+     * Create a mask from a camera frame, reducing the frame by a specific factor.
+     *
+     * @param frame    The camera frame.
+     * @param term     The term value to match.
+     * @param mask     The destination.
+     * @param factor   The reduction factor from getDownscale.
+     * @param coverage Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createMask(YuvFrame frame, int term, Mat mask, int factor, TermCoverage coverage) {
+        return createMask(frame, term, mask, factor, blur, coverage);
+    }
+
+    /**
+     * Create a mask from a camera frame with a specific blur rather than that of the term map.
+     * Camera frames aren't smoothed before lookup, so only a positive blur applies.
+     *
+     * @param frame    The camera frame.
+     * @param term     The term value to match.
+     * @param mask     The destination.
+     * @param factor   The reduction factor from getDownscale.
+     * @param blur     The blur, as for setBlur.
+     * @param coverage Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createMask(YuvFrame frame, int term, Mat mask, int factor, int blur, TermCoverage coverage) {
+        return createMask(frame, term, mask, factor, blur, false, coverage);
+    }
+
+    /**
+     * Given a camera frame, create a mask image that is single channel and has either 0 or 255
+     * at each pixel in a single pass, without making an image of the terms.  As with
+     * createFusedMask for RGB images, the result is the same as createMask, and smoothing
+     * looks up only the rows of each band's window.
+     *
+     * @param frame The camera frame.
+     * @param term  The term value to match.
+     * @param mask  The destination.
+     * @return The destination mask image.
+     * @throws IllegalStateException if the YUV table hasn't been built.
+     */
+    public Mat createFusedMask(YuvFrame frame, int term, Mat mask) {
+        return createFusedMask(frame, term, mask, getDownscale(frame.getWidth(), frame.getHeight()), null);
+    }
+
+    /**
+     * Create a mask from a camera frame in a single pass, reducing the frame by a specific
+     * factor.
+     *
+     * @param frame    The camera frame.
+     * @param term     The term value to match.
+     * @param mask     The destination.
+     * @param factor   The reduction factor from getDownscale.
+     * @param coverage Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createFusedMask(YuvFrame frame, int term, Mat mask, int factor, TermCoverage coverage) {
+        return createFusedMask(frame, term, mask, factor, blur, coverage);
+    }
+
+    /**
+     * Create a mask from a camera frame in a single pass with a specific blur.
+     *
+     * @param frame    The camera frame.
+     * @param term     The term value to match.
+     * @param mask     The destination.
+     * @param factor   The reduction factor from getDownscale.
+     * @param blur     The blur, as for setBlur.
+     * @param coverage Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    Mat createFusedMask(YuvFrame frame, int term, Mat mask, int factor, int blur, TermCoverage coverage) {
+        return createMask(frame, term, mask, factor, blur, true, coverage);
+    }
+
+    /**
+     * Create a mask from a camera frame.
+     *
+     * @param frame    The camera frame.
+     * @param term     The term value to match.
+     * @param mask     The destination.
+     * @param factor   The reduction factor from getDownscale.
+     * @param blur     The blur, as for setBlur.
+     * @param fused    If true and the frame isn't reduced, write the mask without an image of
+     *                 the terms.
+     * @param coverage Either null or counts of the terms that are added to.
+     * @return The destination mask image.
+     */
+    private Mat createMask(YuvFrame frame, int term, Mat mask, int factor, int blur, boolean fused,
+                           TermCoverage coverage) {
+        TermLut yuv = yuvMap;
+        if (yuv == null) {
+            throw new IllegalStateException("YUV table for " + id + " is not built");
+        }
+        Scratch buffers = scratch.get();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (factor > 1) {
+            // Sample the center of each block of pixels rather than averaging it
+            int smallWidth = Math.max(1, width / factor);
+            int smallHeight = Math.max(1, height / factor);
+            DirectMat smallTerms = buffers.getSmallTerms(smallWidth, smallHeight);
+            createMap(yuv, frame, factor, smallWidth, smallHeight, -1, smallTerms, coverage);
+            return refineReducedMask(smallTerms, term, factor, blur, width, height, buffers, mask,
+                    index -> yuv.get(frame.getYuv(index / width, index % width)));
+        }
+        if (fused) {
+            DirectMat output = getOutput(mask, width, height, buffers);
+            if (blur > 1) {
+                ModeFilter.apply((row, labels) -> lookupRow(yuv, frame, row, width, labels),
+                        width, height, output, blur, this.terms.size(), term, coverage);
+            } else {
+                createMap(yuv, frame, 1, width, height, term, output, coverage);
+            }
+            return copyOutput(output, mask);
+        }
+        DirectMat terms = buffers.getTerms(width, height);
+        createMap(yuv, frame, 1, width, height, -1, terms, coverage);
+        if (blur > 1) {
+            DirectMat output = getOutput(mask, width, height, buffers);
+            ModeFilter.apply(terms, output, blur, this.terms.size(), term);
+            return copyOutput(output, mask);
+        }
+        Core.compare(terms, new Scalar(term), mask, Core.CMP_EQ);
+        return mask;
+    }
+
+    /**
+     * Look up the terms of a row of a camera frame.
+     *
+     * @param yuv   The YUV table.
+     * @param frame The camera frame.
+     * @param row   The row.
+     * @param width The number of pixels in the row.
+     * @param dest  The destination for the terms, starting at 0.
+     */
+    private static void lookupRow(TermLut yuv, YuvFrame frame, int row, int width, byte[] dest) {
+        byte[] yuvStage = TermLut.getStage()[0];
+        for (int col = 0; col < width; col += TermLut.STAGE_PIXELS) {
+            int length = Math.min(TermLut.STAGE_PIXELS, width - col);
+            frame.getYuv(row, col, length, yuvStage, 0);
+            yuv.lookup(yuvStage, 0, dest, col, length);
+        }
+    }
+
+    private static void createMap(TermLut yuv, YuvFrame frame, DirectMat dest) {
+        createMap(yuv, frame, 1, frame.getWidth(), frame.getHeight(), -1, dest, null);
+    }
+
+    /**
+     * Look up the terms of a camera frame, optionally sampling one pixel from each block of
+     * pixels.
+     *
+     * @param yuv      The YUV table.
+     * @param frame    The camera frame.
+     * @param step     The size of the blocks.  The center pixel of each is used.
+     * @param width    The number of blocks across.
+     * @param height   The number of blocks down.
+     * @param term     If not negative, write 255 where the block is this term and 0 elsewhere
+     *                 instead of the terms themselves.
+     * @param dest     The destination with one value per block.
+     * @param coverage Either null or counts of the terms that are added to.
+     */
+    private static void createMap(TermLut yuv, YuvFrame frame, int step, int width, int height, int term,
+                                  DirectMat dest, TermCoverage coverage) {
+        ByteBuffer mapData = dest.getBuffer();
+        int offset = step / 2;
+        TermCoverage.Parts parts = coverage != null ? coverage.newParts() : null;
+        TileProcessor.run(width * height, (start, end) -> {
+            byte[][] stage = TermLut.getStage();
+            byte[] yuvStage = stage[0];
+            byte[] termStage = stage[1];
+            ByteBuffer dst = mapData.duplicate();
+            dst.position(start);
+            int[] counts = parts != null ? parts.newPart() : null;
+            int row = start / width;
+            int col = start - row * width;
+            for (int pixel = start; pixel < end; ) {
+                int length = Math.min(Math.min(TermLut.STAGE_PIXELS, end - pixel), width - col);
+                frame.getYuv(row * step + offset, col * step + offset, length, step, yuvStage, 0);
+                yuv.lookup(yuvStage, 0, termStage, 0, length);
+                if (counts != null) {
+                    TermLut.count(termStage, length, counts);
+                }
+                if (term >= 0) {
+                    for (int j = 0; j < length; j++) {
+                        termStage[j] = termStage[j] == term ? (byte) 255 : 0;
+                    }
+                }
+                dst.put(termStage, 0, length);
+                pixel += length;
+                col += length;
+                if (col == width) {
+                    col = 0;
+                    row++;
+                }
+            }
+        });
+        if (parts != null) {
+            parts.merge();
+        }
+    }
+
+    /**
+     * Working images that are kept between calls.  They are reallocated when the image size
+     * changes.
+     */
+    private static class Scratch {
+        private DirectMat rgb;
+        private DirectMat terms;
+        private DirectMat output;
+        private DirectMat small;
+        private DirectMat half;
+        private DirectMat smallTerms;
+        private DirectMat edges;
+        private DirectMat smallMask;
+        private final Mat smallEdges = new Mat();
+        private Mat edgeKernel;
+
+        DirectMat getRgb(Mat image) {
+            rgb = DirectMat.reuse(rgb, image.rows(), image.cols(), image.type());
+            return rgb;
+        }
+
+        DirectMat getTerms(int width, int height) {
+            terms = DirectMat.reuse(terms, height, width, CvType.CV_8UC1);
+            return terms;
+        }
+
+        DirectMat getOutput(int width, int height) {
+            output = DirectMat.reuse(output, height, width, CvType.CV_8UC1);
+            return output;
+        }
+
+        DirectMat getSmall(int rows, int cols, int type) {
+            small = DirectMat.reuse(small, rows, cols, type);
+            return small;
+        }
+
+        DirectMat getHalf(int rows, int cols, int type) {
+            half = DirectMat.reuse(half, rows, cols, type);
+            return half;
+        }
+
+        DirectMat getSmallTerms(int width, int height) {
+            smallTerms = DirectMat.reuse(smallTerms, height, width, CvType.CV_8UC1);
+            return smallTerms;
+        }
+
+        DirectMat getSmallMask(int width, int height) {
+            smallMask = DirectMat.reuse(smallMask, height, width, CvType.CV_8UC1);
+            return smallMask;
+        }
+
+        DirectMat getEdges(int width, int height) {
+            edges = DirectMat.reuse(edges, height, width, CvType.CV_8UC1);
+            return edges;
+        }
+
+        Mat getEdgeKernel() {
+            if (edgeKernel == null) {
+                edgeKernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(3, 3));
+            }
+            return edgeKernel;
+        }
     }
 }
@@ -0,0 +1,177 @@
+package com.orbitals.colorfilter;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Read and write the raw binary term map format.  This is a fixed size header followed by the
+ * term value of every RGB triple, indexed by (r << 16) | (g << 8) | b, in the storage form of
+ * TermLut (either a byte or a packed number of bits per entry).  The file is memory-mapped
+ * read-only, so loading a term map that has already been converted does not decode or copy
+ * anything.
+ * <p>
+ * The header records the length and CRC32 of the source PNG resource so that a cached file is
+ * regenerated if the resource changes between app versions.
+ */
+public class TermMapFile {
+    /**
+     * @noinspection SpellCheckingInspection
+     */
+    private static final String TAG = "com.orbitals.colorfilter.TermMapFile";
+    /**
+     * "CFTM" as a big-endian integer.
+     */
+    public static final int MAGIC = 0x4346544D;
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+    private static final String EXTENSION = ".lut";
+
+    private TermMapFile() {
+    }
+
+    /**
+     * Get a read-only memory-mapped term map for a PNG resource, creating the binary file in the
+     * cache directory if it doesn't already exist or is stale.  If the resource has been decoded
+     * but the file can't be written or mapped, the decoded data is returned instead, so the
+     * caller never decodes the resource a second time.
+     *
+     * @param cacheDir          The directory to store binary term maps in.
+     * @param resources         The resources to load from.
+     * @param termMapResourceId The PNG resource id.
+     * @param bitsPerEntry      The TermLut storage form: 4, 5, or 8.
+     * @return A buffer of TermLut.byteLength(bitsPerEntry) bytes, or null if the resource
+     * couldn't be read before it was decoded.
+     */
+    public static ByteBuffer open(File cacheDir, Resources resources, int termMapResourceId, int bitsPerEntry) {
+        File file = new File(cacheDir, resources.getResourceEntryName(termMapResourceId) + "." + bitsPerEntry + EXTENSION);
+        long[] source;
+        try {
+            source = sourceSignature(resources, termMapResourceId);
+            ByteBuffer map = map(file, source, bitsPerEntry);
+            if (map != null) {
+                return map;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to use binary term map " + file.getName(), e);
+            return null;
+        }
+        Log.d(TAG, "Creating binary term map " + file.getName());
+        ByteBuffer data = TermLut.pack(TermMap.decodeResource(resources, termMapResourceId), bitsPerEntry);
+        try {
+            write(file, source, bitsPerEntry, data);
+            ByteBuffer map = map(file, source, bitsPerEntry);
+            if (map != null) {
+                return map;
+            }
+            Log.e(TAG, "Failed to map binary term map " + file.getName() + "; using the decoded data");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write binary term map " + file.getName() + "; using the decoded data", e);
+        }
+        return data;
+    }
+
+    /**
+     * Compute the length and CRC32 of a raw resource.
+     *
+     * @param resources  The resources to load from.
+     * @param resourceId The raw resource id.
+     * @return A two element array of length and CRC32.
+     * @throws IOException If the resource can't be read.
+     */
+    private static long[] sourceSignature(Resources resources, int resourceId) throws IOException {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        byte[] buffer = new byte[65536];
+        try (InputStream stream = resources.openRawResource(resourceId)) {
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+        }
+        return new long[]{length, crc.getValue()};
+    }
+
+    /**
+     * Memory-map an existing binary term map if its header is valid.
+     *
+     * @param file         The binary file.
+     * @param source       The length and CRC32 of the source resource.
+     * @param bitsPerEntry The expected storage form.
+     * @return A read-only buffer or null if the file doesn't exist or doesn't match.
+     * @throws IOException If the file can't be read.
+     */
+    private static ByteBuffer map(File file, long[] source, int bitsPerEntry) throws IOException {
+        int length = TermLut.byteLength(bitsPerEntry);
+        if (!file.isFile() || file.length() != HEADER_SIZE + (long) length) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION ||
+                    header.getInt() != HEADER_SIZE || header.getInt() != TermLut.ENTRIES ||
+                    header.getInt() != bitsPerEntry || header.getInt() != (int) source[0] ||
+                    header.getLong() != source[1]) {
+                Log.d(TAG, "Stale binary term map " + file.getName());
+                return null;
+            }
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+        }
+    }
+
+    /**
+     * Write a binary term map.  This writes to a temporary file and renames it so a partially
+     * written file is never mapped.
+     *
+     * @param file         The destination file.
+     * @param source       The length and CRC32 of the source resource.
+     * @param bitsPerEntry The storage form of the data.
+     * @param map          The term map data.
+     * @throws IOException If the file can't be written.
+     */
+    private static void write(File file, long[] source, int bitsPerEntry, ByteBuffer map) throws IOException {
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(HEADER_SIZE);
+        header.putInt(TermLut.ENTRIES);
+        header.putInt(bitsPerEntry);
+        header.putInt((int) source[0]);
+        header.putLong(source[1]);
+        header.flip();
+        try (FileOutputStream stream = new FileOutputStream(tmpFile)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer data = map.duplicate();
+            data.rewind();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Failed to rename " + tmpFile.getName());
+        }
+    }
+}
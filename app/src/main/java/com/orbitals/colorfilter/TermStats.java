@@ -0,0 +1,171 @@
+package com.orbitals.colorfilter;
+
+import java.util.stream.IntStream;
+
+/**
+ * Statistics about the part of the RGB cube that maps to a single term: the number of RGB
+ * triples (voxels), the axis-aligned bounding box, and the centroid.  These are computed once
+ * for a term map, the first time they are needed.
+ */
+public class TermStats {
+    private final int term;
+    private final int count;
+    private final int minRed;
+    private final int maxRed;
+    private final int minGreen;
+    private final int maxGreen;
+    private final int minBlue;
+    private final int maxBlue;
+    private final double centroidRed;
+    private final double centroidGreen;
+    private final double centroidBlue;
+
+    private TermStats(int term, int count, int[] min, int[] max, long[] sum) {
+        this.term = term;
+        this.count = count;
+        minRed = min[0];
+        minGreen = min[1];
+        minBlue = min[2];
+        maxRed = max[0];
+        maxGreen = max[1];
+        maxBlue = max[2];
+        centroidRed = count > 0 ? (double) sum[0] / count : 0;
+        centroidGreen = count > 0 ? (double) sum[1] / count : 0;
+        centroidBlue = count > 0 ? (double) sum[2] / count : 0;
+    }
+
+    /**
+     * Compute the statistics of every term in a table.  Each red plane is scanned in parallel.
+     *
+     * @param map      The table.
+     * @param numTerms The number of terms.  Values at or above this are ignored.
+     * @return An array with the statistics of each term.
+     */
+    static TermStats[] compute(TermLut map, int numTerms) {
+        // Per red plane: count, green min, green max, blue min, blue max, green sum, blue sum
+        long[][] planes = new long[256][];
+        IntStream.range(0, 256).parallel().forEach(r -> {
+            long[] plane = new long[numTerms * 7];
+            for (int t = 0; t < numTerms; t++) {
+                plane[t * 7 + 1] = 255;
+                plane[t * 7 + 3] = 255;
+            }
+            for (int g = 0, index = r << 16; g < 256; g++) {
+                for (int b = 0; b < 256; b++, index++) {
+                    int t = map.get(index);
+                    if (t >= numTerms) {
+                        continue;
+                    }
+                    int base = t * 7;
+                    plane[base]++;
+                    plane[base + 1] = Math.min(plane[base + 1], g);
+                    plane[base + 2] = Math.max(plane[base + 2], g);
+                    plane[base + 3] = Math.min(plane[base + 3], b);
+                    plane[base + 4] = Math.max(plane[base + 4], b);
+                    plane[base + 5] += g;
+                    plane[base + 6] += b;
+                }
+            }
+            planes[r] = plane;
+        });
+        TermStats[] stats = new TermStats[numTerms];
+        for (int t = 0; t < numTerms; t++) {
+            int count = 0;
+            int[] min = new int[]{255, 255, 255};
+            int[] max = new int[]{0, 0, 0};
+            long[] sum = new long[3];
+            for (int r = 0; r < 256; r++) {
+                long[] plane = planes[r];
+                int base = t * 7;
+                if (plane[base] == 0) {
+                    continue;
+                }
+                count += (int) plane[base];
+                min[0] = Math.min(min[0], r);
+                max[0] = Math.max(max[0], r);
+                min[1] = Math.min(min[1], (int) plane[base + 1]);
+                max[1] = Math.max(max[1], (int) plane[base + 2]);
+                min[2] = Math.min(min[2], (int) plane[base + 3]);
+                max[2] = Math.max(max[2], (int) plane[base + 4]);
+                sum[0] += plane[base] * r;
+                sum[1] += plane[base + 5];
+                sum[2] += plane[base + 6];
+            }
+            stats[t] = new TermStats(t, count, min, max, sum);
+        }
+        return stats;
+    }
+
+    /**
+     * Check if an RGB value is within the bounding box of the term.  Values outside of the box
+     * never map to the term.
+     *
+     * @param red   The red value [0-255].
+     * @param green The green value [0-255].
+     * @param blue  The blue value [0-255].
+     * @return true if the value is in the bounding box.
+     */
+    public boolean contains(int red, int green, int blue) {
+        return red >= minRed && red <= maxRed && green >= minGreen && green <= maxGreen &&
+                blue >= minBlue && blue <= maxBlue;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    /**
+     * @return The number of RGB triples that map to the term.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getMinRed() {
+        return minRed;
+    }
+
+    public int getMaxRed() {
+        return maxRed;
+    }
+
+    public int getMinGreen() {
+        return minGreen;
+    }
+
+    public int getMaxGreen() {
+        return maxGreen;
+    }
+
+    public int getMinBlue() {
+        return minBlue;
+    }
+
+    public int getMaxBlue() {
+        return maxBlue;
+    }
+
+    public double getCentroidRed() {
+        return centroidRed;
+    }
+
+    public double getCentroidGreen() {
+        return centroidGreen;
+    }
+
+    public double getCentroidBlue() {
+        return centroidBlue;
+    }
+
+    /**
+     * @return The centroid as an opaque ARGB color, suitable for a swatch.
+     */
+    public int getCentroidColor() {
+        return 0xFF000000 | ((int) Math.round(centroidRed) << 16) |
+                ((int) Math.round(centroidGreen) << 8) | (int) Math.round(centroidBlue);
+    }
+}
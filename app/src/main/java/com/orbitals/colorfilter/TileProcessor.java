@@ -0,0 +1,152 @@
+package com.orbitals.colorfilter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-pixel kernels, such as the term lookup, on a dedicated pool.  The pixels are split
+ * into tiles of consecutive pixels that are small enough that the input and output of a tile
+ * stay in cache; a tile is the smallest unit of work given to a thread.  Both the number of
+ * threads and the tile size can be changed to suit a device.
+ */
+public class TileProcessor {
+    /**
+     * The default number of pixels in a tile.  With 3-byte input and 1-byte output, a tile
+     * touches 64 kB.
+     */
+    public static final int DEFAULT_TILE_SIZE = 16384;
+
+    private static ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    /**
+     * The number of runs using each pool.  A pool that has been replaced is shut down once the
+     * last run that was using it returns, so a run never sees its pool shut down.
+     */
+    private static final Map<ForkJoinPool, Integer> users = new IdentityHashMap<>();
+    private static volatile int tileSize = DEFAULT_TILE_SIZE;
+
+    /**
+     * A kernel that processes a range of pixels.
+     */
+    public interface Kernel {
+        /**
+         * @param start The first pixel to process.
+         * @param end   One past the last pixel to process.
+         */
+        void run(int start, int end);
+    }
+
+    private static class TileAction extends RecursiveAction {
+        private final Kernel kernel;
+        private final int length;
+        private final int tileSize;
+        private final int firstTile;
+        private final int lastTile;
+
+        TileAction(Kernel kernel, int length, int tileSize, int firstTile, int lastTile) {
+            this.kernel = kernel;
+            this.length = length;
+            this.tileSize = tileSize;
+            this.firstTile = firstTile;
+            this.lastTile = lastTile;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastTile - firstTile == 1) {
+                int start = firstTile * tileSize;
+                kernel.run(start, Math.min(length, start + tileSize));
+                return;
+            }
+            int mid = (firstTile + lastTile) >>> 1;
+            invokeAll(new TileAction(kernel, length, tileSize, firstTile, mid),
+                    new TileAction(kernel, length, tileSize, mid, lastTile));
+        }
+    }
+
+    /**
+     * Run a kernel over a range of pixels.  A range that fits in one tile is run on the calling
+     * thread.  This returns once all of the pixels are processed.
+     *
+     * @param length The number of pixels.
+     * @param kernel The kernel to run on each tile.
+     */
+    public static void run(int length, Kernel kernel) {
+        int tileSize = TileProcessor.tileSize;
+        if (length <= tileSize) {
+            if (length > 0) {
+                kernel.run(0, length);
+            }
+            return;
+        }
+        int tiles = (int) (((long) length + tileSize - 1) / tileSize);
+        ForkJoinPool pool = acquirePool();
+        try {
+            pool.invoke(new TileAction(kernel, length, tileSize, 0, tiles));
+        } finally {
+            releasePool(pool);
+        }
+    }
+
+    private static synchronized ForkJoinPool acquirePool() {
+        Integer count = users.get(pool);
+        users.put(pool, count == null ? 1 : count + 1);
+        return pool;
+    }
+
+    private static synchronized void releasePool(ForkJoinPool released) {
+        int count = users.get(released) - 1;
+        if (count > 0) {
+            users.put(released, count);
+            return;
+        }
+        users.remove(released);
+        if (released != pool) {
+            released.shutdown();
+        }
+    }
+
+    /**
+     * @return The number of threads used to process tiles.
+     */
+    public static synchronized int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Set the number of threads used to process tiles.  Work that is already running finishes on
+     * the previous pool, which is shut down once that work returns.
+     *
+     * @param parallelism The number of threads.  If less than 1, the number of available
+     *                    processors is used.
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (parallelism == pool.getParallelism()) {
+            return;
+        }
+        if (!users.containsKey(pool)) {
+            pool.shutdown();
+        }
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @return The number of pixels in a tile.
+     */
+    public static int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Set the number of pixels in a tile.
+     *
+     * @param tileSize The number of pixels.  If less than 1, the default is used.
+     */
+    public static void setTileSize(int tileSize) {
+        TileProcessor.tileSize = tileSize < 1 ? DEFAULT_TILE_SIZE : tileSize;
+    }
+}
@@ -16,12 +16,19 @@ import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
 
 public class Utilities {
     /**
      * @noinspection SpellCheckingInspection
      */
     private static final String TAG = "com.orbitals.colorfilter.Utilities";
+    /**
+     * Terms that cover less than this fraction of a frame aren't shown in the coverage readout.
+     */
+    private static final double MIN_COVERAGE_SHOWN = 0.02;
+    private static final int MAX_COVERAGE_TERMS = 4;
 
     public static Mat centerOfImage(Context context, TextureView textureView, FilterProcessor filter, Mat input, Matrix imageMatrix) {
         float density = context.getResources().getDisplayMetrics().density;
@@ -72,6 +79,56 @@ public class Utilities {
         canvas.drawCircle(width * 0.5f, height * 0.5f, (circleDiameter + strokeWidth) / 2, blackPaint);
     }
 
+    /**
+     * Draw the terms that cover the most of the last filtered frame and their percentages,
+     * centered just below the sampling circle in the middle of the canvas.
+     *
+     * @param context The context used for the display density.
+     * @param filter  The filter with the coverage.
+     * @param canvas  The canvas to draw on.
+     */
+    public static void drawTermCoverage(Context context, FilterProcessor filter, Canvas canvas) {
+        TermCoverage coverage = filter.getCoverage();
+        TermMap termMap = filter.getTermMap();
+        if (coverage == null || termMap == null) {
+            return;
+        }
+        List<String> terms = termMap.getTerms();
+        StringBuilder text = new StringBuilder();
+        int shown = 0;
+        for (int term : coverage.getTerms(MIN_COVERAGE_SHOWN)) {
+            if (term >= terms.size() || shown == MAX_COVERAGE_TERMS) {
+                break;
+            }
+            if (shown > 0) {
+                text.append("  ");
+            }
+            text.append(String.format(Locale.getDefault(), "%s %d%%", terms.get(term),
+                    Math.round(coverage.getFraction(term) * 100)));
+            shown++;
+        }
+        if (shown == 0) {
+            return;
+        }
+        float density = context.getResources().getDisplayMetrics().density;
+        float margin = 8 * density;
+        float circleDiameter = filter.getSampleSize() * density;
+        Paint textPaint = new Paint();
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(14 * density);
+        textPaint.setAntiAlias(true);
+        Paint backgroundPaint = new Paint();
+        backgroundPaint.setColor(Color.argb(160, 0, 0, 0));
+        String line = text.toString();
+        Paint.FontMetrics metrics = textPaint.getFontMetrics();
+        float boxWidth = textPaint.measureText(line) + 2 * margin;
+        float left = (canvas.getWidth() - boxWidth) / 2;
+        float top = canvas.getHeight() * 0.5f + circleDiameter / 2 + margin;
+        canvas.drawRect(left, top, left + boxWidth,
+                top + metrics.descent - metrics.ascent + 2 * margin, backgroundPaint);
+        canvas.drawText(line, left + margin, top + margin - metrics.ascent, textPaint);
+    }
+
     /*
      * Taken from https://github.com/opencv/opencv/blob/4.x/modules/java/generator/android-21/java/org/opencv/android/JavaCamera2View.java
      */
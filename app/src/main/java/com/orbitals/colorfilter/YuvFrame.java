@@ -0,0 +1,219 @@
+package com.orbitals.colorfilter;
+
+import android.media.Image;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The planes of a YUV 4:2:0 camera frame whose chroma samples are interleaved (NV12 or NV21),
+ * which is how most cameras deliver YUV_420_888.  The plane buffers are used without copying.
+ */
+public class YuvFrame {
+    /*
+     * The fixed-point BT.601 coefficients OpenCV uses to convert YUV 4:2:0 to RGB, so that
+     * classifying YUV values directly gives the same terms as converting the frame first.
+     */
+    private static final int CY = 1220542;
+    private static final int CUB = 2116026;
+    private static final int CUG = -409993;
+    private static final int CVG = -852492;
+    private static final int CVR = 1673527;
+    private static final int SHIFT = 20;
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer y;
+    private final int yRowStride;
+    private final ByteBuffer u;
+    private final ByteBuffer v;
+    private final int uvRowStride;
+
+    /**
+     * @param width       The frame width.  This should be even.
+     * @param height      The frame height.  This should be even.
+     * @param y           The luma plane with one byte per pixel.
+     * @param yRowStride  The distance between luma rows in bytes.
+     * @param u           The U (Cb) plane with one sample for every 2 x 2 pixels and a pixel
+     *                    stride of 2.
+     * @param v           The V (Cr) plane, interleaved with the U plane.
+     * @param uvRowStride The distance between chroma rows in bytes.
+     */
+    public YuvFrame(int width, int height, ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride) {
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.yRowStride = yRowStride;
+        this.u = u;
+        this.v = v;
+        this.uvRowStride = uvRowStride;
+    }
+
+    /**
+     * Wrap the planes of a camera image.
+     *
+     * @param image A YUV_420_888 image.
+     * @return The frame or null if the image doesn't have interleaved chroma planes.
+     */
+    public static YuvFrame from(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        if (planes == null || planes.length < 3 || planes[0].getPixelStride() != 1 ||
+                planes[1].getPixelStride() != 2 || planes[2].getPixelStride() != 2 ||
+                planes[1].getRowStride() != planes[2].getRowStride()) {
+            return null;
+        }
+        return new YuvFrame(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride());
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Convert the frame to RGBA.
+     *
+     * @param dest The destination.  This is reallocated if it isn't an RGBA image of the frame's
+     *             size.
+     * @return The destination.
+     */
+    public Mat toRgba(Mat dest) {
+        Mat yMat = new Mat(height, width, CvType.CV_8UC1, y, yRowStride);
+        Mat uMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, u, uvRowStride);
+        Mat vMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, v, uvRowStride);
+        //noinspection SpellCheckingInspection
+        if (vMat.dataAddr() > uMat.dataAddr()) {
+            Imgproc.cvtColorTwoPlane(yMat, uMat, dest, Imgproc.COLOR_YUV2RGBA_NV12);
+        } else {
+            Imgproc.cvtColorTwoPlane(yMat, vMat, dest, Imgproc.COLOR_YUV2RGBA_NV21);
+        }
+        yMat.release();
+        uMat.release();
+        vMat.release();
+        return dest;
+    }
+
+    /**
+     * Get a frame for a rectangle of this one.  The planes are shared, not copied.
+     *
+     * @param x      The left column.  This must be even.
+     * @param y      The top row.  This must be even.
+     * @param width  The width.
+     * @param height The height.
+     * @return A frame of the rectangle.
+     */
+    public YuvFrame crop(int x, int y, int width, int height) {
+        int uvOffset = (y / 2) * uvRowStride + x;
+        return new YuvFrame(width, height, slice(this.y, y * yRowStride + x), yRowStride,
+                slice(u, uvOffset), slice(v, uvOffset), uvRowStride);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer result = buffer.duplicate();
+        result.position(offset);
+        return result.slice();
+    }
+
+    /**
+     * Reduce the frame to a thumbnail by averaging blocks of pixels.
+     *
+     * @param dest The destination.  Its size is the size of the thumbnail.  This becomes a
+     *             three channel image of Y and the two chroma values.
+     */
+    public void thumbnail(Mat dest) {
+        Size size = dest.size();
+        Mat yMat = new Mat(height, width, CvType.CV_8UC1, y, yRowStride);
+        Mat uMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, u, uvRowStride);
+        Mat vMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, v, uvRowStride);
+        // Use whichever chroma plane starts first so the image stays within the buffers
+        Mat uvMat = vMat.dataAddr() > uMat.dataAddr() ? uMat : vMat;
+        Mat ySmall = new Mat();
+        Mat uvSmall = new Mat();
+        Imgproc.resize(yMat, ySmall, size, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.resize(uvMat, uvSmall, size, 0, 0, Imgproc.INTER_AREA);
+        Core.merge(Arrays.asList(ySmall, uvSmall), dest);
+        yMat.release();
+        uMat.release();
+        vMat.release();
+        ySmall.release();
+        uvSmall.release();
+    }
+
+    /**
+     * Copy the Y, U, and V values of a run of pixels in one row into an array as triples.
+     *
+     * @param row    The row.
+     * @param col    The first column.
+     * @param count  The number of pixels.
+     * @param dest   The destination for Y, U, V triples.
+     * @param offset The offset of the first triple in dest.
+     */
+    void getYuv(int row, int col, int count, byte[] dest, int offset) {
+        getYuv(row, col, count, 1, dest, offset);
+    }
+
+    /**
+     * Copy the Y, U, and V values of every step-th pixel in one row into an array as triples.
+     *
+     * @param row    The row.
+     * @param col    The first column.
+     * @param count  The number of pixels to copy.
+     * @param step   The distance between the columns of consecutive pixels.
+     * @param dest   The destination for Y, U, V triples.
+     * @param offset The offset of the first triple in dest.
+     */
+    void getYuv(int row, int col, int count, int step, byte[] dest, int offset) {
+        int yBase = row * yRowStride;
+        int uvBase = (row >> 1) * uvRowStride;
+        for (int x = col, i = offset, end = offset + count * 3; i < end; x += step, i += 3) {
+            int uv = uvBase + (x & ~1);
+            dest[i] = y.get(yBase + x);
+            dest[i + 1] = u.get(uv);
+            dest[i + 2] = v.get(uv);
+        }
+    }
+
+    /**
+     * Get the YUV value of one pixel.
+     *
+     * @param row The row.
+     * @param col The column.
+     * @return (Y << 16) | (U << 8) | V.
+     */
+    int getYuv(int row, int col) {
+        int uv = (row >> 1) * uvRowStride + (col & ~1);
+        return ((y.get(row * yRowStride + col) & 0xFF) << 16) | ((u.get(uv) & 0xFF) << 8) | (v.get(uv) & 0xFF);
+    }
+
+    /**
+     * Convert a YUV value to RGB the same way that OpenCV converts YUV 4:2:0 frames.
+     *
+     * @param yuv (Y << 16) | (U << 8) | V.
+     * @return (r << 16) | (g << 8) | b.
+     */
+    public static int toRgb(int yuv) {
+        int luma = Math.max(0, (yuv >>> 16) - 16) * CY;
+        int cb = ((yuv >> 8) & 0xFF) - 128;
+        int cr = (yuv & 0xFF) - 128;
+        int round = 1 << (SHIFT - 1);
+        int r = clamp((luma + round + CVR * cr) >> SHIFT);
+        int g = clamp((luma + round + CVG * cr + CUG * cb) >> SHIFT);
+        int b = clamp((luma + round + CUB * cb) >> SHIFT);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}